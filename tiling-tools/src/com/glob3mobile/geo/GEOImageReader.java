@@ -0,0 +1,281 @@
+
+
+package com.glob3mobile.geo;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.OverviewPolicy;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.geometry.Envelope;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.datum.PixelInCell;
+import org.opengis.referencing.operation.TransformException;
+
+
+/**
+ * Reads a GeoTIFF either as a whole or by windows, pulling from the file only the pixels (and, when decimating, only the
+ * subsampled pixels) of the requested window.
+ */
+public class GEOImageReader {
+
+   private final GeoTiffReader             _reader;
+   private final CoordinateReferenceSystem _crs;
+   private final GridGeometry2D            _gridGeometry;
+   private final Rectangle                 _gridBounds;
+   private final CoordinateReferenceSystem _wgs84;
+
+   public final GEOSector                  _sector;
+   public final Point2D                    _resolution;
+   private final Point2D[]                 _overviewsResolutions;
+
+
+   public GEOImageReader(final File inputFile) throws IOException {
+      _reader = new GeoTiffReader(inputFile);
+      _crs = _reader.getCoordinateReferenceSystem();
+      _gridGeometry = new GridGeometry2D( //
+               _reader.getOriginalGridRange(), //
+               _reader.getOriginalGridToWorld(PixelInCell.CELL_CORNER), //
+               _crs);
+      _gridBounds = _gridGeometry.getGridRange2D().getBounds();
+      try {
+         _wgs84 = CRS.decode("EPSG:4326");
+      }
+      catch (final FactoryException e) {
+         throw new IOException(e);
+      }
+
+      _sector = new GEOSector(_reader.getOriginalEnvelope());
+      _resolution = new Point2D.Double( //
+               _sector._delta._longitude / _gridBounds.width, //
+               _sector._delta._latitude / _gridBounds.height);
+      _overviewsResolutions = initializeOverviewsResolutions();
+   }
+
+
+   private Point2D[] initializeOverviewsResolutions() throws IOException {
+      // in the CRS units, row 0 is the full resolution image
+      final double[][] levels = _reader.getResolutionLevels();
+      final Point2D[] result = new Point2D[levels.length - 1];
+      for (int i = 1; i < levels.length; i++) {
+         result[i - 1] = new Point2D.Double( //
+                  _resolution.getX() * (levels[i][0] / levels[0][0]), //
+                  _resolution.getY() * (levels[i][1] / levels[0][1]));
+      }
+      return result;
+   }
+
+
+   public CoordinateReferenceSystem getCRS() {
+      return _crs;
+   }
+
+
+   public int getWidth() {
+      return _gridBounds.width;
+   }
+
+
+   public int getHeight() {
+      return _gridBounds.height;
+   }
+
+
+   /**
+    * Number of (internal or external) overviews of the GeoTIFF.
+    */
+   public int getNumberOfOverviews() {
+      return _overviewsResolutions.length;
+   }
+
+
+   /**
+    * Resolution, in degrees, of the overview at the given index (0 is the first overview, not the full resolution image).
+    */
+   public Point2D getOverviewResolution(final int index) {
+      return _overviewsResolutions[index];
+   }
+
+
+   /**
+    * Answers the index of the coarsest overview still at or above (as fine as or finer than) the given resolution, or -1
+    * if no overview is fine enough and the full resolution image has to be used.
+    */
+   public int getBestOverview(final Point2D resolution) {
+      // absorbs the rounding of the resolutions derived from the envelope
+      final double tolerance = 1e-9;
+      int best = -1;
+      for (int i = 0; i < _overviewsResolutions.length; i++) {
+         final Point2D overviewResolution = _overviewsResolutions[i];
+         if ((overviewResolution.getX() <= (resolution.getX() * (1 + tolerance)))
+             && (overviewResolution.getY() <= (resolution.getY() * (1 + tolerance)))) {
+            if ((best == -1) || (overviewResolution.getX() > _overviewsResolutions[best].getX())) {
+               best = i;
+            }
+         }
+      }
+      return best;
+   }
+
+
+   /**
+    * Reads the whole overview at the given index, at its own resolution.
+    */
+   public GEOImage readOverview(final int index) throws IOException {
+      final GEOImage result = readWindow(_sector, _overviewsResolutions[index], OverviewPolicy.QUALITY);
+      if (result == null) {
+         throw new IOException("Can't read overview #" + index);
+      }
+      return result;
+   }
+
+
+   /**
+    * Size of a decoded pixel, as stored by the rasters returned by read() and readWindow().
+    */
+   public int getBytesPerPixel() throws IOException {
+      final SampleModel sampleModel = _reader.getImageLayout().getSampleModel(null);
+      if (sampleModel == null) {
+         return 4;
+      }
+      final int bitsPerBand = DataBuffer.getDataTypeSize(sampleModel.getDataType());
+      return Math.max(1, (sampleModel.getNumBands() * bitsPerBand) / 8);
+   }
+
+
+   public GEOImage read() throws IOException {
+      final GridCoverage2D coverage = _reader.read(null);
+      try {
+         return new GEOImage(new GEOSector(coverage.getEnvelope()), createImage(coverage));
+      }
+      finally {
+         coverage.dispose(true);
+      }
+   }
+
+
+   /**
+    * Reads the pixels of the image covering the given sector, decimated to (approximately) the given resolution.
+    *
+    * @return the window, or null if the sector doesn't overlap the image.
+    */
+   public GEOImage readWindow(final GEOSector sector,
+                              final Point2D resolution) throws IOException {
+      return readWindow(sector, resolution, OverviewPolicy.IGNORE);
+   }
+
+
+   /**
+    * As readWindow(sector, resolution), but with OverviewPolicy.QUALITY the pixels are read from the coarsest overview
+    * still at or above the given resolution, when there is one.
+    */
+   public GEOImage readWindow(final GEOSector sector,
+                              final Point2D resolution,
+                              final OverviewPolicy overviewPolicy) throws IOException {
+      final Rectangle window = getWindow(sector);
+      if (window == null) {
+         return null;
+      }
+
+      final double scaleX = _resolution.getX() / resolution.getX();
+      final double scaleY = _resolution.getY() / resolution.getY();
+      final int width = Math.max(1, Math.min(window.width, (int) Math.ceil(window.width * scaleX)));
+      final int height = Math.max(1, Math.min(window.height, (int) Math.ceil(window.height * scaleY)));
+
+      try {
+         final Envelope envelope = _gridGeometry.gridToWorld(new GridEnvelope2D(window));
+         final GridEnvelope range = new GridEnvelope2D(0, 0, width, height);
+
+         final ParameterValue<GridGeometry2D> gridGeometryParameter = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+         gridGeometryParameter.setValue(new GridGeometry2D(range, envelope));
+
+         final ParameterValue<OverviewPolicy> overviewPolicyParameter = AbstractGridFormat.OVERVIEW_POLICY.createValue();
+         overviewPolicyParameter.setValue(overviewPolicy);
+
+         final GridCoverage2D coverage = _reader.read(new GeneralParameterValue[] {
+                  gridGeometryParameter,
+                  overviewPolicyParameter
+         });
+         if (coverage == null) {
+            return null;
+         }
+         try {
+            return new GEOImage(new GEOSector(coverage.getEnvelope()), createImage(coverage));
+         }
+         finally {
+            coverage.dispose(true);
+         }
+      }
+      catch (final TransformException e) {
+         throw new IOException(e);
+      }
+   }
+
+
+   private Rectangle getWindow(final GEOSector sector) throws IOException {
+      // clip to the image sector first, tiles sectors can reach latitudes not representable in the image CRS
+      final double lowerLatitude = Math.max(sector._lower._latitude, _sector._lower._latitude);
+      final double lowerLongitude = Math.max(sector._lower._longitude, _sector._lower._longitude);
+      final double upperLatitude = Math.min(sector._upper._latitude, _sector._upper._latitude);
+      final double upperLongitude = Math.min(sector._upper._longitude, _sector._upper._longitude);
+      if ((lowerLatitude >= upperLatitude) || (lowerLongitude >= upperLongitude)) {
+         return null;
+      }
+
+      final GeneralEnvelope geodeticEnvelope = new GeneralEnvelope( //
+               new double[] { lowerLatitude, lowerLongitude }, //
+               new double[] { upperLatitude, upperLongitude });
+      geodeticEnvelope.setCoordinateReferenceSystem(_wgs84);
+
+      final Rectangle window;
+      try {
+         final GeneralEnvelope envelope = CRS.transform(geodeticEnvelope, _crs);
+         window = _gridGeometry.worldToGrid(new Envelope2D(envelope)).getBounds();
+      }
+      catch (final TransformException e) {
+         throw new IOException(e);
+      }
+
+      // one pixel of margin to absorb the rounding of worldToGrid
+      window.grow(1, 1);
+      final Rectangle clipped = window.intersection(_gridBounds);
+      return clipped.isEmpty() ? null : clipped;
+   }
+
+
+   private static BufferedImage createImage(final GridCoverage2D coverage) {
+      final RenderedImage image = coverage.getRenderedImage();
+      final Raster data = image.getData().createTranslatedChild(0, 0);
+      final ColorModel colorModel = image.getColorModel();
+      final WritableRaster writableRaster = data.createCompatibleWritableRaster();
+      writableRaster.setDataElements(0, 0, data);
+      return new BufferedImage(colorModel, writableRaster, colorModel.isAlphaPremultiplied(), null);
+   }
+
+
+   public void dispose() {
+      _reader.dispose();
+   }
+
+
+}
@@ -0,0 +1,152 @@
+
+
+package com.glob3mobile.tools.tiling;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import com.glob3mobile.utils.ConcurrencyUtils;
+import com.glob3mobile.utils.ImageUtils;
+import com.glob3mobile.utils.Logger;
+
+
+/**
+ * Builds the tiles of a level from the tiles of the level below (its children in the quadtree defined by
+ * Pyramid.createChildren()): every parent tile is the 2x2 reduction of its four children.
+ * <p>
+ * The children must be fed row by row, in ascending row order. Only the children of the row of parents in progress are
+ * retained (two rows of children), and every completed row of parents is written and fed to the next (coarser) reducer.
+ */
+class LevelReducer {
+
+   interface TileConsumer {
+      /**
+       * @param image
+       *           the tile image, or null if the tile has no visible pixels
+       */
+      void accept(int level,
+                  int column,
+                  int row,
+                  BufferedImage image) throws IOException;
+   }
+
+
+   private final int                              _level;
+   private final int                              _tileWidth;
+   private final int                              _tileHeight;
+   private final TileConsumer                     _consumer;
+   private final LevelReducer                     _next;
+   private final ExecutorService                  _executor;
+
+   private int                                    _parentRow  = -1;
+   // parent column => children, in image order: top-left, top-right, bottom-left, bottom-right
+   private final TreeMap<Integer, BufferedImage[]> _children  = new TreeMap<Integer, BufferedImage[]>();
+   private long                                   _tilesCount = 0;
+
+
+   /**
+    * @param level
+    *           the level of the produced (parent) tiles
+    * @param next
+    *           the reducer fed with the produced tiles, or null
+    */
+   LevelReducer(final int level,
+                final int tileWidth,
+                final int tileHeight,
+                final TileConsumer consumer,
+                final LevelReducer next,
+                final ExecutorService executor) {
+      _level = level;
+      _tileWidth = tileWidth;
+      _tileHeight = tileHeight;
+      _consumer = consumer;
+      _next = next;
+      _executor = executor;
+   }
+
+
+   /**
+    * @param childRow
+    *           the row of the children, with the Tile convention (row 0 at the south)
+    * @param childrenByColumn
+    *           the images of the children (null for a fully transparent child) keyed by column
+    */
+   void addChildRow(final int childRow,
+                    final Map<Integer, BufferedImage> childrenByColumn) throws IOException {
+      final int parentRow = childRow / 2;
+      if (parentRow != _parentRow) {
+         flush();
+         _parentRow = parentRow;
+      }
+
+      // rows grow northward, so the odd child row is the top half of the parent
+      final int quadrantY = ((childRow % 2) == 1) ? 0 : 2;
+      for (final Map.Entry<Integer, BufferedImage> entry : childrenByColumn.entrySet()) {
+         final int childColumn = entry.getKey();
+         final Integer parentColumn = childColumn / 2;
+         BufferedImage[] children = _children.get(parentColumn);
+         if (children == null) {
+            children = new BufferedImage[4];
+            _children.put(parentColumn, children);
+         }
+         children[quadrantY + (childColumn % 2)] = entry.getValue();
+      }
+   }
+
+
+   private void flush() throws IOException {
+      if (_children.isEmpty()) {
+         return;
+      }
+
+      final List<Integer> columns = new ArrayList<Integer>(_children.keySet());
+      final List<Callable<BufferedImage>> reductions = new ArrayList<Callable<BufferedImage>>(columns.size());
+      for (final BufferedImage[] children : _children.values()) {
+         reductions.add(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() {
+               if ((children[0] == null) && (children[1] == null) && (children[2] == null) && (children[3] == null)) {
+                  return null;
+               }
+               return ImageUtils.reduce2x2(children[0], children[1], children[2], children[3], _tileWidth, _tileHeight);
+            }
+         });
+      }
+      _children.clear();
+
+      final List<BufferedImage> parents = ConcurrencyUtils.invokeAll(_executor, reductions);
+
+      final Map<Integer, BufferedImage> parentsByColumn = new TreeMap<Integer, BufferedImage>();
+      for (int i = 0; i < columns.size(); i++) {
+         final int column = columns.get(i);
+         final BufferedImage parent = parents.get(i);
+         _consumer.accept(_level, column, _parentRow, parent);
+         parentsByColumn.put(column, parent);
+      }
+      _tilesCount += columns.size();
+
+      if (_next != null) {
+         _next.addChildRow(_parentRow, parentsByColumn);
+      }
+   }
+
+
+   /**
+    * Flushes the pending rows of this reducer and of the next ones.
+    */
+   void finish() throws IOException {
+      flush();
+      Logger.log("Reduced level " + _level + ", " + _tilesCount + " tiles");
+      if (_next != null) {
+         _next.finish();
+      }
+   }
+
+
+}
@@ -0,0 +1,238 @@
+
+
+package com.glob3mobile.tools.tiling;
+
+import java.awt.image.BufferedImage;
+
+import com.glob3mobile.geo.GEOSector;
+import com.glob3mobile.tools.tiling.pyramid.Pyramid;
+import com.glob3mobile.utils.ResamplingKernel;
+
+
+/**
+ * Cuts the tiles of a level from a geographic image (linear in latitude and longitude) when the pyramid isn't, resampling
+ * only the pixels of every tile. The latitude of every row of pixels comes from a lookup table computed per row of tiles
+ * (Pyramid.getPixelsLatitudes()), the longitude is linear.
+ * <p>
+ * Vertically the source rows are weighted with the resampling kernel, stretched by the local scale of the projection (so
+ * near the equator, where a row of pixels of the tile covers about two rows of the image, they are averaged instead of
+ * aliased). Horizontally the image and the tiles share the resolution, so the nearest pixel is taken.
+ */
+class TileWarper {
+
+   private static class RowLatitudes {
+      private final int      _row;
+      private final double[] _latitudes;
+
+
+      private RowLatitudes(final int row,
+                           final double[] latitudes) {
+         _row = row;
+         _latitudes = latitudes;
+      }
+   }
+
+
+   private final Pyramid          _pyramid;
+   private final int              _level;
+   private final ResamplingKernel _kernel;
+   // the tiles are cut row by row, so only the table of the last row is kept
+   private volatile RowLatitudes  _lastRowLatitudes = null;
+
+
+   TileWarper(final Pyramid pyramid,
+              final int level,
+              final ResamplingKernel kernel) {
+      _pyramid = pyramid;
+      _level = level;
+      _kernel = kernel;
+   }
+
+
+   private double[] getPixelsLatitudes(final int row) {
+      final RowLatitudes last = _lastRowLatitudes;
+      if ((last != null) && (last._row == row)) {
+         return last._latitudes;
+      }
+      final double[] latitudes = _pyramid.getPixelsLatitudes(_level, row);
+      _lastRowLatitudes = new RowLatitudes(row, latitudes);
+      return latitudes;
+   }
+
+
+   /**
+    * @param row
+    *           the row of the tile, with the Tile convention (row 0 at the south)
+    */
+   void warpTile(final BufferedImage tileImage,
+                 final BufferedImage image,
+                 final GEOSector imageSector,
+                 final GEOSector tileSector,
+                 final int row) {
+      final int tileWidth = tileImage.getWidth();
+      final int tileHeight = tileImage.getHeight();
+      final int imageWidth = image.getWidth();
+      final int imageHeight = image.getHeight();
+
+      final int[] sourceXs = new int[tileWidth];
+      int minSourceX = Integer.MAX_VALUE;
+      int maxSourceX = Integer.MIN_VALUE;
+      for (int x = 0; x < tileWidth; x++) {
+         final double longitude = tileSector._lower._longitude + ((tileSector._delta._longitude * (x + 0.5)) / tileWidth);
+         final double u = (longitude - imageSector._lower._longitude) / imageSector._delta._longitude;
+         final int sourceX = (int) Math.floor(u * imageWidth);
+         sourceXs[x] = sourceX;
+         if ((sourceX >= 0) && (sourceX < imageWidth)) {
+            minSourceX = Math.min(minSourceX, sourceX);
+            maxSourceX = Math.max(maxSourceX, sourceX);
+         }
+      }
+      if (minSourceX > maxSourceX) {
+         return;
+      }
+
+      final VerticalWeights vertical = new VerticalWeights(getPixelsLatitudes(row), imageSector, imageHeight);
+      if (vertical._fromSourceY >= vertical._toSourceY) {
+         return;
+      }
+
+      final int spanWidth = (maxSourceX - minSourceX) + 1;
+      final int spanHeight = vertical._toSourceY - vertical._fromSourceY;
+      final int[] sourcePixels = image.getRGB(minSourceX, vertical._fromSourceY, spanWidth, spanHeight, null, 0, spanWidth);
+      final int[] tileRow = new int[tileWidth];
+      for (int y = 0; y < tileHeight; y++) {
+         final int count = vertical._counts[y];
+         if (count == 0) {
+            continue;
+         }
+         final int start = vertical._starts[y] - vertical._fromSourceY;
+         final int weightsOffset = y * vertical._maxCount;
+         for (int x = 0; x < tileWidth; x++) {
+            final int sourceX = sourceXs[x];
+            if ((sourceX < minSourceX) || (sourceX > maxSourceX)) {
+               tileRow[x] = 0;
+               continue;
+            }
+            // premultiplied accumulation, as the Resampler, so the transparent pixels don't bleed their color
+            double a = 0;
+            double r = 0;
+            double g = 0;
+            double b = 0;
+            for (int i = 0; i < count; i++) {
+               final int argb = sourcePixels[((start + i) * spanWidth) + (sourceX - minSourceX)];
+               final int alpha = argb >>> 24;
+               if (alpha != 0) {
+                  final double weight = vertical._weights[weightsOffset + i] * alpha;
+                  a += weight;
+                  r += ((argb >> 16) & 0xff) * weight;
+                  g += ((argb >> 8) & 0xff) * weight;
+                  b += (argb & 0xff) * weight;
+               }
+            }
+            tileRow[x] = toARGB(a, r, g, b);
+         }
+         tileImage.setRGB(0, y, tileWidth, 1, tileRow, 0, tileWidth);
+      }
+   }
+
+
+   private static int toARGB(final double a,
+                             final double r,
+                             final double g,
+                             final double b) {
+      final int alpha = clamp(a);
+      if (alpha == 0) {
+         return 0;
+      }
+      return (alpha << 24) | (clamp(r / a) << 16) | (clamp(g / a) << 8) | clamp(b / a);
+   }
+
+
+   private static int clamp(final double value) {
+      final long rounded = Math.round(value);
+      if (rounded < 0) {
+         return 0;
+      }
+      if (rounded > 255) {
+         return 255;
+      }
+      return (int) rounded;
+   }
+
+
+   /**
+    * The normalized weights of the image rows contributing to every row of pixels of a tile. The rows of the tile whose
+    * center falls outside the image are left transparent.
+    */
+   private class VerticalWeights {
+      private final int      _maxCount;
+      private final int[]    _starts;
+      private final int[]    _counts;
+      private final double[] _weights;
+      private final int      _fromSourceY;
+      private final int      _toSourceY;
+
+
+      private VerticalWeights(final double[] pixelsLatitudes,
+                              final GEOSector imageSector,
+                              final int imageHeight) {
+         final int tileHeight = pixelsLatitudes.length;
+         final double rowsPerDegree = imageHeight / imageSector._delta._latitude;
+
+         final double[] centers = new double[tileHeight];
+         final double[] filterScales = new double[tileHeight];
+         double maxSupport = 0;
+         for (int y = 0; y < tileHeight; y++) {
+            centers[y] = (imageSector._upper._latitude - pixelsLatitudes[y]) * rowsPerDegree;
+            // image rows per row of the tile around y, NEAREST is point sampling, the rest are stretched when downsampling
+            final int above = Math.max(y - 1, 0);
+            final int below = Math.min(y + 1, tileHeight - 1);
+            final double scale = (below > above) ? ((pixelsLatitudes[above] - pixelsLatitudes[below]) * rowsPerDegree)
+                                                   / (below - above) : 1;
+            filterScales[y] = (_kernel == ResamplingKernel.NEAREST) ? 1 : Math.max(1, scale);
+            maxSupport = Math.max(maxSupport, _kernel.getSupport() * filterScales[y]);
+         }
+
+         _maxCount = (((int) Math.ceil(maxSupport)) * 2) + 1;
+         _starts = new int[tileHeight];
+         _counts = new int[tileHeight];
+         _weights = new double[tileHeight * _maxCount];
+
+         int fromSourceY = Integer.MAX_VALUE;
+         int toSourceY = Integer.MIN_VALUE;
+         for (int y = 0; y < tileHeight; y++) {
+            final double center = centers[y];
+            if ((center < 0) || (center >= imageHeight)) {
+               continue;
+            }
+            final double support = _kernel.getSupport() * filterScales[y];
+            final int from = Math.max((int) Math.floor(center - support), 0);
+            final int to = Math.min((int) Math.ceil(center + support), imageHeight);
+
+            final int offset = y * _maxCount;
+            double total = 0;
+            int count = 0;
+            for (int j = from; (j < to) && (count < _maxCount); j++) {
+               final double weight = _kernel.weight(((j + 0.5) - center) / filterScales[y]);
+               _weights[offset + count] = weight;
+               total += weight;
+               count++;
+            }
+            if (total == 0) {
+               continue;
+            }
+
+            for (int j = 0; j < count; j++) {
+               _weights[offset + j] /= total;
+            }
+            _starts[y] = from;
+            _counts[y] = count;
+            fromSourceY = Math.min(fromSourceY, from);
+            toSourceY = Math.max(toSourceY, from + count);
+         }
+         _fromSourceY = fromSourceY;
+         _toSourceY = toSourceY;
+      }
+   }
+
+}
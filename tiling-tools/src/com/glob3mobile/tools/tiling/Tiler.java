@@ -4,32 +4,49 @@ package com.glob3mobile.tools.tiling;
 
 
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.Raster;
-import java.awt.image.RenderedImage;
-import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
 
-import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.coverage.grid.io.OverviewPolicy;
 
 import com.glob3mobile.geo.GEOImage;
+import com.glob3mobile.geo.GEOImageReader;
 import com.glob3mobile.geo.GEOSector;
+import com.glob3mobile.tools.tiling.output.TileDeduplicator;
+import com.glob3mobile.tools.tiling.output.TileSink;
 import com.glob3mobile.tools.tiling.pyramid.Pyramid;
-import com.glob3mobile.tools.tiling.pyramid.Tile;
+import com.glob3mobile.tools.tiling.pyramid.TileRange;
+import com.glob3mobile.tools.tiling.pyramid.TilesManifest;
+import com.glob3mobile.tools.tiling.pyramid.TilesManifestLevel;
+import com.glob3mobile.tools.tiling.pyramid.TilesManifestWriter;
 import com.glob3mobile.tools.tiling.pyramid.WebMercatorPyramid;
+import com.glob3mobile.utils.BoundedExecutor;
+import com.glob3mobile.utils.ConcurrencyUtils;
 import com.glob3mobile.utils.IOUtils;
+import com.glob3mobile.utils.ImageUtils;
 import com.glob3mobile.utils.Logger;
+import com.glob3mobile.utils.MemoryBudget;
+import com.glob3mobile.utils.Resampler;
+import com.glob3mobile.utils.StringUtils;
 
 
 public class Tiler {
@@ -38,6 +55,15 @@ public class Tiler {
                                        final String inputDirectoryName,
                                        final String outputDirectoryName,
                                        final boolean recursive) throws IOException {
+      processDirectory(pyramid, inputDirectoryName, outputDirectoryName, recursive, TilerSettings.createDefault());
+   }
+
+
+   public static void processDirectory(final Pyramid pyramid,
+                                       final String inputDirectoryName,
+                                       final String outputDirectoryName,
+                                       final boolean recursive,
+                                       final TilerSettings settings) throws IOException {
       final File inputDirectory = new File(inputDirectoryName);
       if (!inputDirectory.exists()) {
          throw new IOException("Input-Directory \"" + inputDirectoryName + "\" doesn't exist");
@@ -46,34 +72,135 @@ public class Tiler {
          throw new IOException("\"" + inputDirectoryName + "\" is not a directory");
       }
 
-      processDirectory(pyramid, inputDirectory, outputDirectoryName, recursive);
+      final List<File> inputFiles = new ArrayList<File>();
+      collectGeoTIFFs(inputDirectory, recursive, inputFiles);
+
+      final ExecutorService tilesExecutor = createExecutor(settings.getThreads(), "tiler-");
+      final ExecutorService filesExecutor = createExecutor(settings.getConcurrentFiles(), "tiler-file-");
+      try {
+         processFiles(pyramid, inputFiles, outputDirectoryName, settings, tilesExecutor, filesExecutor);
+      }
+      finally {
+         shutdown(filesExecutor);
+         shutdown(tilesExecutor);
+      }
    }
 
 
-   private static void processDirectory(final Pyramid pyramid,
-                                        final File directory,
-                                        final String outputDirectoryName,
-                                        final boolean recursive) throws IOException {
+   private static void collectGeoTIFFs(final File directory,
+                                       final boolean recursive,
+                                       final List<File> result) {
       for (final File child : listFiles(directory)) {
          if (child.isDirectory()) {
             if (recursive) {
-               processDirectory(pyramid, child, outputDirectoryName, recursive);
+               collectGeoTIFFs(child, recursive, result);
             }
          }
          else if (child.isFile()) {
             final String lowerCaseName = child.getName().toLowerCase();
             if (lowerCaseName.endsWith(".tif") || lowerCaseName.endsWith(".tiff")) {
-               final String subdirectoryName = child.getName().replace('.', '_') + ".tiles";
-               final String childOutputDirectoryName = new File(outputDirectoryName, subdirectoryName).getAbsolutePath();
-               //System.out.println("- Found geotiff: " + child.getName() + " ==> " + childOutputDirectoryName);
-               final Tiler tiler = new Tiler(pyramid, child.getAbsolutePath(), childOutputDirectoryName);
-               tiler.process();
+               result.add(child);
             }
          }
       }
    }
 
 
+   /**
+    * Processes the files concurrently. Every file goes to its own output directory, and a file is admitted only when its
+    * estimated memory fits in the settings' memory budget together with the files already running.
+    */
+   private static void processFiles(final Pyramid pyramid,
+                                    final List<File> inputFiles,
+                                    final String outputDirectoryName,
+                                    final TilerSettings settings,
+                                    final ExecutorService tilesExecutor,
+                                    final ExecutorService filesExecutor) throws IOException {
+      final MemoryBudget budget = new MemoryBudget(settings.getMemoryBudget());
+      final BoundedExecutor files = new BoundedExecutor(filesExecutor, settings.getConcurrentFiles());
+
+      try {
+         scheduleFiles(pyramid, inputFiles, outputDirectoryName, settings, tilesExecutor, budget, files);
+      }
+      catch (final IOException | RuntimeException | Error e) {
+         // the files already admitted are finished, the executors' threads are daemons and would be abandoned mid-write
+         files.awaitCompletion(e);
+         throw e;
+      }
+      files.awaitCompletion();
+   }
+
+
+   private static void scheduleFiles(final Pyramid pyramid,
+                                     final List<File> inputFiles,
+                                     final String outputDirectoryName,
+                                     final TilerSettings settings,
+                                     final ExecutorService tilesExecutor,
+                                     final MemoryBudget budget,
+                                     final BoundedExecutor files) throws IOException {
+      for (final File inputFile : inputFiles) {
+         final String subdirectoryName = inputFile.getName().replace('.', '_') + ".tiles";
+         final String childOutputDirectoryName = new File(outputDirectoryName, subdirectoryName).getAbsolutePath();
+         //System.out.println("- Found geotiff: " + child.getName() + " ==> " + childOutputDirectoryName);
+
+         final long estimatedMemory = estimateMemory(pyramid, inputFile, settings);
+         final MemoryBudget.Reservation reservation;
+         try {
+            reservation = budget.reserve(estimatedMemory);
+         }
+         catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for memory", e);
+         }
+         Logger.log("Scheduling \"" + inputFile.getName() + "\" (estimated memory "
+                    + StringUtils.getSpaceMessage(estimatedMemory) + ") " + budget);
+
+         try {
+            files.execute(() -> {
+               try {
+                  final Tiler tiler = new Tiler(pyramid, inputFile.getAbsolutePath(), childOutputDirectoryName, settings);
+                  tiler.process(tilesExecutor);
+               }
+               finally {
+                  reservation.release();
+               }
+            });
+         }
+         catch (final IOException | RuntimeException e) {
+            reservation.release();
+            throw e;
+         }
+      }
+   }
+
+
+   /**
+    * Estimates the heap needed to tile the given file with the given settings.
+    */
+   private static long estimateMemory(final Pyramid pyramid,
+                                      final File inputFile,
+                                      final TilerSettings settings) throws IOException {
+      final long tileBytes = 4L * pyramid.getTileImageWidth() * pyramid.getTileImageHeight();
+      // every tile in flight holds its tile image and its encoding buffers
+      final long tilesInFlightBytes = 2 * tileBytes * settings.getMaxTilesInFlight();
+
+      if (settings.isStreaming()) {
+         // a decoded window (not tile-aligned, so up to twice the batch in each axis) and its copy
+         return tilesInFlightBytes + (2 * 4 * tileBytes * settings.getTilesPerBatch());
+      }
+
+      final GEOImageReader reader = new GEOImageReader(inputFile);
+      try {
+         final long pixels = (long) reader.getWidth() * reader.getHeight();
+         // the decoded raster, its copy and the first level image (ARGB, at most as big as the source)
+         return tilesInFlightBytes + (2 * pixels * reader.getBytesPerPixel()) + (4 * pixels);
+      }
+      finally {
+         reader.dispose();
+      }
+   }
+
+
    private static File[] listFiles(final File directory) {
       final File[] result = directory.listFiles();
       final Comparator<File> comparator = new Comparator<File>() {
@@ -91,121 +218,123 @@ public class Tiler {
    public static void processFile(final Pyramid pyramid,
                                   final String inputFileName,
                                   final String outputDirectoryName) throws IOException {
-      final Tiler tiler = new Tiler(pyramid, inputFileName, outputDirectoryName);
-      tiler.process();
+      processFile(pyramid, inputFileName, outputDirectoryName, TilerSettings.createDefault());
+   }
+
+
+   public static void processFile(final Pyramid pyramid,
+                                  final String inputFileName,
+                                  final String outputDirectoryName,
+                                  final TilerSettings settings) throws IOException {
+      final ExecutorService tilesExecutor = createExecutor(settings.getThreads(), "tiler-");
+      try {
+         final Tiler tiler = new Tiler(pyramid, inputFileName, outputDirectoryName, settings);
+         tiler.process(tilesExecutor);
+      }
+      finally {
+         shutdown(tilesExecutor);
+      }
    }
 
 
-   private final Pyramid _pyramid;
-   private final File    _inputFile;
-   private final File    _outputDirectory;
+   private final Pyramid       _pyramid;
+   private final File          _inputFile;
+   private final File          _outputDirectory;
+   private final TilerSettings _settings;
+   private final Resampler     _resampler;
 
 
    private Tiler(final Pyramid pyramid,
                  final String inputFileName,
-                 final String outputDirectoryName) throws IOException {
+                 final String outputDirectoryName,
+                 final TilerSettings settings) throws IOException {
       _pyramid = pyramid;
+      _settings = settings;
+      _resampler = new Resampler(settings.getResamplingKernel(), ForkJoinPool.commonPool());
       _inputFile = new File(inputFileName);
       if (!_inputFile.exists()) {
          throw new IOException("\"" + inputFileName + "\" not found!");
       }
       _outputDirectory = new File(outputDirectoryName);
-      IOUtils.ensureEmptyDirectory(_outputDirectory);
-   }
-
-
-   private static GEOSector createSector(final GridCoverage2D coverage) {
-      return new GEOSector(coverage.getEnvelope());
+      if (settings.isResume()) {
+         IOUtils.ensureDirectory(_outputDirectory);
+      }
+      else {
+         IOUtils.ensureEmptyDirectory(_outputDirectory);
+      }
    }
 
 
-   private static BufferedImage createImage(final GridCoverage2D coverage) {
+   private GEOImage read(final GEOImageReader reader) throws IOException {
       Logger.log("Creating image...");
-      final RenderedImage image = coverage.getRenderedImage();
-      final Raster data = image.getData();
-      final ColorModel colorModel = image.getColorModel();
-      final WritableRaster writableRaster = data.createCompatibleWritableRaster();
-      writableRaster.setDataElements(0, 0, data);
-      return new BufferedImage(colorModel, writableRaster, colorModel.isAlphaPremultiplied(), null);
+      final GEOImage geoImage = reader.read();
+      Logger.log("Created image " + geoImage._bufferedImage.getWidth() + "x" + geoImage._bufferedImage.getHeight());
+      return geoImage;
    }
 
 
-   private GEOImage read(final File inputFile) throws IOException {
-      Logger.log("Reading image \"" + inputFile.getAbsolutePath() + "\"...");
-
-      final GeoTiffReader reader = new GeoTiffReader(inputFile);
-      final GridCoverage2D coverage = reader.read(null);
-
-      _pyramid.checkCRS(coverage);
-
-      final GEOSector sector = createSector(coverage);
-      Logger.log("Read image, sector " + sector);
-
-      final BufferedImage image = createImage(coverage);
-      Logger.log("Created image " + image.getWidth() + "x" + image.getHeight());
-
-      return new GEOImage(sector, image);
-   }
-
-
-   private void processTile(final GEOImage geoImage,
-                            final Pyramid pyramid,
-                            final Tile tile,
-                            final int maxLevel,
-                            final Level[] levels) {
-      final int levelInt = tile._level;
-      if (levelInt <= maxLevel) {
-         if (tile._sector.touchesWith(geoImage._sector)) {
-            final Level level = levels[levelInt];
-            if (level != null) {
-               level.processTile(tile);
-            }
-
-            if (levelInt < maxLevel) {
-               final List<Tile> children = pyramid.createChildren(geoImage._sector, tile);
-               for (final Tile child : children) {
-                  processTile(geoImage, pyramid, child, maxLevel, levels);
-               }
-            }
-         }
-      }
-   }
-
    private static class Level {
-      private final Pyramid         _pyramid;
-      private final int             _level;
+      private final Pyramid             _pyramid;
+      private final int                 _level;
+      private final TileRange           _range;
+      private final TileSink            _sink;
+      private final TilesManifestWriter _manifest;
+      private final TilesManifestLevel  _previous;
+      // tiles of the range not recorded yet, the level is marked as completed when it reaches zero
+      private final AtomicLong          _pending;
+      private final TileWarper          _warper;
+      private final Resampler           _resampler;
+      private final TileDeduplicator    _deduplicator;
+
+
+      /**
+       * @param deduplicator
+       *           null to encode every tile
+       */
+      private Level(final Pyramid pyramid,
+                    final TileRange range,
+                    final TileSink sink,
+                    final TilesManifestWriter manifest,
+                    final TilesManifestLevel previous,
+                    final boolean warp,
+                    final Resampler resampler,
+                    final TileDeduplicator deduplicator) {
+         _pyramid = pyramid;
+         _level = range._level;
+         _range = range;
+         _sink = sink;
+         _manifest = manifest;
+         _previous = previous;
+         _pending = new AtomicLong(range.getTilesCount() - previous.getTilesCount());
+         _warper = warp ? new TileWarper(pyramid, _level, resampler.getKernel()) : null;
+         _resampler = resampler;
+         _deduplicator = deduplicator;
+      }
 
-      private int                   _minRow    = Integer.MAX_VALUE;
-      private int                   _maxRow    = Integer.MIN_VALUE;
-      private int                   _minColumn = Integer.MAX_VALUE;
-      private int                   _maxColumn = Integer.MIN_VALUE;
 
-      private final ArrayList<Tile> _tiles     = new ArrayList<Tile>();
+      /**
+       * Answers true if a previous run already recorded every tile of this level.
+       */
+      private boolean isCompleted() {
+         return _previous.isCompleted();
+      }
 
 
-      private Level(final Pyramid pyramid,
-                    final int level) {
-         _pyramid = pyramid;
-         _level = level;
+      private boolean isRecorded(final int column,
+                                 final int tileRow) {
+         return _previous.isRecorded(column, toFileRow(_pyramid, _level, tileRow));
       }
 
 
-      private void processTile(final Tile tile) {
-         final int row = tile._row;
-         if (row < _minRow) {
-            _minRow = row;
-         }
-         if (row > _maxRow) {
-            _maxRow = row;
-         }
-         final int column = tile._column;
-         if (column < _minColumn) {
-            _minColumn = column;
-         }
-         if (column > _maxColumn) {
-            _maxColumn = column;
+      private boolean isRecorded(final int fromColumn,
+                                 final int toColumn,
+                                 final int tileRow) {
+         for (int column = fromColumn; column <= toColumn; column++) {
+            if (!isRecorded(column, tileRow)) {
+               return false;
+            }
          }
-         _tiles.add(tile);
+         return true;
       }
 
 
@@ -215,27 +344,20 @@ public class Tiler {
          builder.append("[Level level=");
          builder.append(_level);
          builder.append(", row=");
-         builder.append(_minRow);
+         builder.append(_range._minRow);
          builder.append("/");
-         builder.append(_maxRow);
+         builder.append(_range._maxRow);
          builder.append(", column=");
-         builder.append(_minColumn);
+         builder.append(_range._minColumn);
          builder.append("/");
-         builder.append(_maxColumn);
+         builder.append(_range._maxColumn);
          builder.append(", tiles=");
-         builder.append(((_maxRow - _minRow) + 1) * ((_maxColumn - _minColumn) + 1));
-         builder.append("/");
-         builder.append(_tiles.size());
+         builder.append(_range.getTilesCount());
          builder.append("]");
          return builder.toString();
       }
 
 
-      private void initialize() {
-         _tiles.trimToSize();
-      }
-
-
       private Point2D calculateResolution(final GEOSector sector,
                                           final BufferedImage image) {
          final double x = sector._delta._longitude / image.getWidth();
@@ -244,9 +366,9 @@ public class Tiler {
       }
 
 
-      private BufferedImage process(final File outputDirectory,
-                                    final GEOSector sector,
-                                    final BufferedImage previousImage) throws IOException {
+      private BufferedImage process(final GEOSector sector,
+                                    final BufferedImage previousImage,
+                                    final BoundedExecutor tasks) throws IOException {
          Logger.log("Processing: " + this);
 
          final Point2D previousResolution = calculateResolution(sector, previousImage);
@@ -261,35 +383,234 @@ public class Tiler {
 
          Logger.log("  Resizing image from " + previousImage.getWidth() + "x" + previousImage.getHeight() + " to " + width + "x"
                     + height + "...");
-         final BufferedImage levelImage = scaleImage(previousImage, width, height);
+         final BufferedImage levelImage = _resampler.resample(previousImage, width, height);
 
          //         IOUtils.writeJPEG(levelImage, output, height)
          //                  final File output = new File(outputDirectory, _level + ".png");
          //                  ImageIO.write(levelImage, "png", output);
 
-         Logger.log("  Saving " + _tiles.size() + " tiles...");
-         for (final Tile tile : _tiles) {
-            //            log("    Processing tile: " + tile);
-            saveTile(outputDirectory, levelImage, sector, tile);
+         // the tiles are saved concurrently, levelImage is only read from now on and the caller can already scale it to
+         // produce the next level
+         if (isCompleted()) {
+            Logger.log("  Level already completed");
+            return levelImage;
+         }
+
+         Logger.log("  Saving " + _range.getTilesCount() + " tiles...");
+         for (int row = _range._minRow; row <= _range._maxRow; row++) {
+            for (int column = _range._minColumn; column <= _range._maxColumn; column++) {
+               if (isRecorded(column, row)) {
+                  continue;
+               }
+               final int tileColumn = column;
+               final int tileRow = row;
+               tasks.execute(() -> saveTile(levelImage, sector, tileColumn, tileRow));
+            }
          }
 
          return levelImage;
       }
 
 
-      private void saveTile(final File outputDirectory,
-                            final BufferedImage image,
+      private boolean processStreaming(final GEOImageReader reader,
+                                       final OverviewPolicy overviewPolicy,
+                                       final int tilesPerBatch,
+                                       final BoundedExecutor tasks) throws IOException {
+         Logger.log("Processing: " + this);
+
+         final Point2D levelResolution = _pyramid.resolutionForLevel(_level);
+         final int width = Math.round((float) ((reader.getWidth() * reader._resolution.getX()) / levelResolution.getX()));
+         final int height = Math.round((float) ((reader.getHeight() * reader._resolution.getY()) / levelResolution.getY()));
+
+         if ((width <= 1) || (height <= 1)) {
+            return false;
+         }
+
+         if (isCompleted()) {
+            Logger.log("  Level already completed");
+            return true;
+         }
+
+         Logger.log("  Saving " + _range.getTilesCount() + " tiles in windows of " + tilesPerBatch + " tiles...");
+         // every window is a run of contiguous tiles of the same row
+         for (int row = _range._minRow; row <= _range._maxRow; row++) {
+            for (int fromColumn = _range._minColumn; fromColumn <= _range._maxColumn; fromColumn += tilesPerBatch) {
+               final int toColumn = Math.min(fromColumn + (tilesPerBatch - 1), _range._maxColumn);
+               if (isRecorded(fromColumn, toColumn, row)) {
+                  continue;
+               }
+               final GEOImage window = reader.readWindow(getSector(fromColumn, toColumn, row), levelResolution, overviewPolicy);
+               for (int column = fromColumn; column <= toColumn; column++) {
+                  if (isRecorded(column, row)) {
+                     continue;
+                  }
+                  final int tileColumn = column;
+                  final int tileRow = row;
+                  if (window == null) {
+                     tasks.execute(() -> saveTile(null, null, tileColumn, tileRow));
+                  }
+                  else {
+                     tasks.execute(() -> saveTile(window._bufferedImage, window._sector, tileColumn, tileRow));
+                  }
+               }
+            }
+         }
+
+         return true;
+      }
+
+
+      /**
+       * Renders the tiles of this (the deepest) level row by row, and feeds every row to the reducer building the coarser
+       * levels. The tiles are cut from the given image, or from windows read from the reader when the image is null. The
+       * tiles recorded by a previous run are read back from the output directory instead, when the reducer needs them.
+       */
+      private void processReducing(final GEOImage image,
+                                   final GEOImageReader reader,
+                                   final int tilesPerBatch,
+                                   final BoundedExecutor tasks,
+                                   final ExecutorService executor,
+                                   final LevelReducer reducer) throws IOException {
+         Logger.log("Processing: " + this);
+
+         final Point2D levelResolution = _pyramid.resolutionForLevel(_level);
+
+         final BufferedImage levelImage;
+         final int batchSize;
+         if (image == null) {
+            levelImage = null;
+            batchSize = tilesPerBatch;
+         }
+         else {
+            final BufferedImage sourceImage = image._bufferedImage;
+            final Point2D sourceResolution = calculateResolution(image._sector, sourceImage);
+            final int width = Math.round((float) ((sourceImage.getWidth() * sourceResolution.getX()) / levelResolution.getX()));
+            final int height = Math.round((float) ((sourceImage.getHeight() * sourceResolution.getY()) / levelResolution.getY()));
+            Logger.log("  Resizing image from " + sourceImage.getWidth() + "x" + sourceImage.getHeight() + " to " + width + "x"
+                       + height + "...");
+            levelImage = _resampler.resample(sourceImage, width, height);
+            batchSize = _range.getColumnsCount();
+         }
+
+         Logger.log("  Saving " + _range.getTilesCount() + " tiles...");
+         for (int row = _range._minRow; row <= _range._maxRow; row++) {
+            final Map<Integer, BufferedImage> rowImages = new TreeMap<Integer, BufferedImage>();
+            for (int fromColumn = _range._minColumn; fromColumn <= _range._maxColumn; fromColumn += batchSize) {
+               final int toColumn = Math.min(fromColumn + (batchSize - 1), _range._maxColumn);
+
+               final BufferedImage window;
+               final GEOSector windowSector;
+               if (isRecorded(fromColumn, toColumn, row)) {
+                  window = null;
+                  windowSector = null;
+               }
+               else if (levelImage == null) {
+                  final GEOImage geoWindow = reader.readWindow(getSector(fromColumn, toColumn, row), levelResolution);
+                  window = (geoWindow == null) ? null : geoWindow._bufferedImage;
+                  windowSector = (geoWindow == null) ? null : geoWindow._sector;
+               }
+               else {
+                  window = levelImage;
+                  windowSector = image._sector;
+               }
+
+               final List<Callable<BufferedImage>> renders = new ArrayList<Callable<BufferedImage>>();
+               for (int column = fromColumn; column <= toColumn; column++) {
+                  final GEOSector tileSector = _pyramid.getTileSector(_level, column, row);
+                  final int tileColumn = column;
+                  final int tileRow = row;
+                  if (isRecorded(column, row)) {
+                     renders.add(() -> (reducer == null) ? null : readTile(tileColumn, tileRow));
+                  }
+                  else {
+                     renders.add(() -> renderTile(window, windowSector, tileSector, tileRow));
+                  }
+               }
+               final List<BufferedImage> tileImages = ConcurrencyUtils.invokeAll(executor, renders);
+
+               for (int column = fromColumn; column <= toColumn; column++) {
+                  final int tileColumn = column;
+                  final int tileRow = row;
+                  final BufferedImage tileImage = tileImages.get(column - fromColumn);
+                  if (!isRecorded(column, row)) {
+                     if (tileImage == null) {
+                        recordEmptyTile(tileColumn, tileRow);
+                     }
+                     else {
+                        tasks.execute(() -> writeTile(tileColumn, tileRow, tileImage));
+                     }
+                  }
+                  rowImages.put(column, tileImage);
+               }
+            }
+
+            if (reducer != null) {
+               reducer.addChildRow(row, rowImages);
+            }
+         }
+      }
+
+
+      private GEOSector getSector(final int fromColumn,
+                                  final int toColumn,
+                                  final int row) {
+         final GEOSector fromSector = _pyramid.getTileSector(_level, fromColumn, row);
+         final GEOSector toSector = _pyramid.getTileSector(_level, toColumn, row);
+         return new GEOSector(fromSector._lower, toSector._upper);
+      }
+
+
+      private void saveTile(final BufferedImage image,
                             final GEOSector imageSector,
-                            final Tile tile) throws IOException {
+                            final int column,
+                            final int row) throws IOException {
+         final BufferedImage tileImage = renderTile(image, imageSector, _pyramid.getTileSector(_level, column, row), row);
+         if (tileImage == null) {
+            recordEmptyTile(column, row);
+         }
+         else {
+            writeTile(column, row, tileImage);
+         }
+      }
+
+
+      /**
+       * Answers the tile image, or null (without rendering anything) if the tile has no visible pixels in the given image.
+       */
+      private BufferedImage renderTile(final BufferedImage image,
+                                       final GEOSector imageSector,
+                                       final GEOSector tileSector,
+                                       final int row) {
+         if (image == null) {
+            return null;
+         }
+
+         final Rectangle sourceBounds = getSourceBounds(image, imageSector, tileSector);
+         // grown a pixel, the edges of the source rectangle are rounded
+         if (!ImageUtils.hasVisiblePixels(image, sourceBounds.x - 1, sourceBounds.y - 1, sourceBounds.width + 2,
+                  sourceBounds.height + 2)) {
+            return null;
+         }
+
          final int tileImageWidth = _pyramid.getTileImageWidth();
          final int tileImageHeight = _pyramid.getTileImageHeight();
 
-         final Point2D lowerUV = imageSector.getUVCoordinates(tile._sector._lower);
-         final Point2D upperUV = imageSector.getUVCoordinates(tile._sector._upper);
-         final int dx1 = 0;
-         final int dy1 = 0;
-         final int dx2 = tileImageWidth;
-         final int dy2 = tileImageHeight;
+         final BufferedImage tileImage = new BufferedImage(tileImageWidth, tileImageHeight, BufferedImage.TYPE_4BYTE_ABGR);
+         if (_warper == null) {
+            drawTile(tileImage, image, sourceBounds);
+         }
+         else {
+            _warper.warpTile(tileImage, image, imageSector, tileSector, row);
+         }
+         return tileImage;
+      }
+
+
+      private static Rectangle getSourceBounds(final BufferedImage image,
+                                               final GEOSector imageSector,
+                                               final GEOSector tileSector) {
+         final Point2D lowerUV = imageSector.getUVCoordinates(tileSector._lower);
+         final Point2D upperUV = imageSector.getUVCoordinates(tileSector._upper);
          //         final int sx1 = Math.round((float) lowerUV.getX() * image.getWidth());
          //         final int sy1 = Math.round((float) (1.0 - lowerUV.getY()) * image.getHeight());
          //         final int sx2 = Math.round((float) upperUV.getX() * image.getWidth());
@@ -298,8 +619,21 @@ public class Tiler {
          final int sy1 = Math.round((float) upperUV.getY() * image.getHeight());
          final int sx2 = Math.round((float) upperUV.getX() * image.getWidth());
          final int sy2 = Math.round((float) lowerUV.getY() * image.getHeight());
+         return new Rectangle(sx1, sy1, sx2 - sx1, sy2 - sy1);
+      }
 
-         final BufferedImage tileImage = new BufferedImage(tileImageWidth, tileImageHeight, BufferedImage.TYPE_4BYTE_ABGR);
+
+      private static void drawTile(final BufferedImage tileImage,
+                                   final BufferedImage image,
+                                   final Rectangle sourceBounds) {
+         final int dx1 = 0;
+         final int dy1 = 0;
+         final int dx2 = tileImage.getWidth();
+         final int dy2 = tileImage.getHeight();
+         final int sx1 = sourceBounds.x;
+         final int sy1 = sourceBounds.y;
+         final int sx2 = sourceBounds.x + sourceBounds.width;
+         final int sy2 = sourceBounds.y + sourceBounds.height;
 
          final Graphics2D g2d = tileImage.createGraphics();
 
@@ -312,103 +646,373 @@ public class Tiler {
                   sx1, sy1, sx2, sy2, //
                   null);
          g2d.dispose();
+      }
 
 
-         final int numRows = _pyramid.getNumberOfRows(_level);
-         final int row = numRows - tile._row - 1;
-         // final int row = tile._row;
+      private static int toFileRow(final Pyramid pyramid,
+                                   final int level,
+                                   final int tileRow) {
+         final int numRows = pyramid.getNumberOfRows(level);
+         return numRows - tileRow - 1;
+         // return tileRow;
+      }
 
-         final File output = new File(outputDirectory, _level + "/" + tile._column + "/" + row + ".png");
-         //final File output = new File(outputDirectory, _level + "/" + row + "-" + tile._column + ".png");
-         final File parentDirectory = output.getParentFile();
-         if (!parentDirectory.exists()) {
-            if (!parentDirectory.mkdirs()) {
-               throw new IOException("Can't create directory \"" + parentDirectory.getAbsolutePath() + "\"");
-            }
+
+      /**
+       * Reads back a tile recorded by a previous run, answering null if it was recorded as empty.
+       */
+      private BufferedImage readTile(final int column,
+                                     final int tileRow) throws IOException {
+         final int row = toFileRow(_pyramid, _level, tileRow);
+         if (!TilesManifest.isWritten(_previous.getState(column, row))) {
+            return null;
          }
-         //log("    Saving tile: " + tile);
-         ImageIO.write(tileImage, "png", output);
+         final byte[] data = _sink.read(_level, column, row);
+         final BufferedImage image = (data == null) ? null : ImageIO.read(new ByteArrayInputStream(data));
+         if (image == null) {
+            throw new IOException("Can't read tile " + _level + "/" + column + "/" + row + " from " + _sink);
+         }
+         return image;
       }
 
 
-      private static BufferedImage scaleImage(final BufferedImage image,
-                                              final int width,
-                                              final int height) {
-         //return toBufferedImage(previousImage.getScaledInstance(width, height, Image.SCALE_SMOOTH));
-
-         final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-         final Graphics2D g2d = result.createGraphics();
-         //         g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-         g2d.setRenderingHints(getHQRenderingHints());
+      private void recordEmptyTile(final int column,
+                                   final int tileRow) throws IOException {
+         record(column, tileRow, TilesManifest.EMPTY);
+      }
 
-         final int dx1 = 0;
-         final int dy1 = 0;
-         final int dx2 = width;
-         final int dy2 = height;
-         final int sx1 = 0;
-         final int sy1 = 0;
-         final int sx2 = image.getWidth();
-         final int sy2 = image.getHeight();
-         g2d.drawImage(//
-                  image, //
-                  dx1, dy1, dx2, dy2, //
-                  sx1, sy1, sx2, sy2, //
-                  null);
 
-         g2d.dispose();
-         return result;
+      private void record(final int column,
+                          final int tileRow,
+                          final byte state) throws IOException {
+         _manifest.record(_level, column, toFileRow(_pyramid, _level, tileRow), state);
+         if (_range.contains(column, tileRow) && (_pending.decrementAndGet() == 0)) {
+            _manifest.recordLevelCompleted(_level);
+         }
       }
 
 
-      private static RenderingHints getHQRenderingHints() {
-         final RenderingHints hints = new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-         hints.put(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
-         hints.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-         hints.put(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-         return hints;
+      /**
+       * @param tileRow
+       *           the row of the tile, with the Tile convention (row 0 at the south)
+       */
+      private void writeTile(final int column,
+                             final int tileRow,
+                             final BufferedImage tileImage) throws IOException {
+         final int row = toFileRow(_pyramid, _level, tileRow);
+         //log("    Saving tile: " + tile);
+         // the opacity is recorded now, while the pixels are at hand, for the TilesMixer
+         final byte state = ImageUtils.isFullOpaque(tileImage) ? TilesManifest.OPAQUE : TilesManifest.PARTIAL;
+         final TileSink.Callback callback = () -> record(column, tileRow, state);
+         if (_deduplicator == null) {
+            _sink.write(_level, column, row, IOUtils.encodePNG(tileImage), callback);
+         }
+         else {
+            _deduplicator.write(_sink, _level, column, row, tileImage, IOUtils::encodePNG, callback);
+         }
       }
 
 
    }
 
 
-   private void process() throws IOException {
-      final GEOImage geoImage = read(_inputFile);
+   private static ExecutorService createExecutor(final int threads,
+                                                 final String namePrefix) {
+      if (threads <= 1) {
+         return null;
+      }
+      final AtomicInteger threadNumber = new AtomicInteger(1);
+      final ThreadFactory threadFactory = new ThreadFactory() {
+         @Override
+         public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+         }
+      };
+      return Executors.newFixedThreadPool(threads, threadFactory);
+   }
 
-      final int minLevel = 0;
-      final int maxLevel = _pyramid.bestLevelForResolution(geoImage._resolution.getX(), geoImage._resolution.getY());
-      Logger.log("MaxLevel: " + maxLevel);
 
-      final Level[] levels = new Level[maxLevel + 1];
-      for (int i = 0; i <= maxLevel; i++) {
-         levels[i] = (i < minLevel) ? null : new Level(_pyramid, i);
+   private static void shutdown(final ExecutorService executor) {
+      if (executor != null) {
+         executor.shutdown();
       }
+   }
+
+
+   private boolean isProducible(final GEOImageReader reader,
+                                final int level) {
+      final Point2D levelResolution = _pyramid.resolutionForLevel(level);
+      final int width = Math.round((float) ((reader.getWidth() * reader._resolution.getX()) / levelResolution.getX()));
+      final int height = Math.round((float) ((reader.getHeight() * reader._resolution.getY()) / levelResolution.getY()));
+      return (width > 1) && (height > 1);
+   }
+
 
-      for (final Tile tile : _pyramid.getTopTiles()) {
-         processTile(geoImage, _pyramid, tile, maxLevel, levels);
+   /**
+    * Creates the chain of reducers producing the levels above maxLevel (down to the coarsest level still producible),
+    * answering the reducer fed by maxLevel, or null if there is no such level.
+    */
+   private LevelReducer createReducers(final GEOImageReader reader,
+                                       final Level[] levels,
+                                       final int minLevel,
+                                       final int maxLevel,
+                                       final BoundedExecutor tasks,
+                                       final ExecutorService tilesExecutor) {
+      int coarsestLevel = maxLevel;
+      while ((coarsestLevel > minLevel) && isProducible(reader, coarsestLevel - 1)) {
+         coarsestLevel--;
       }
 
-      for (final Level level : levels) {
-         if (level != null) {
-            level.initialize();
+      final LevelReducer.TileConsumer consumer = new LevelReducer.TileConsumer() {
+         @Override
+         public void accept(final int level,
+                            final int column,
+                            final int row,
+                            final BufferedImage image) throws IOException {
+            final Level reducedLevel = levels[level];
+            if (reducedLevel.isRecorded(column, row)) {
+               return;
+            }
+            if (image == null) {
+               reducedLevel.recordEmptyTile(column, row);
+            }
+            else {
+               tasks.execute(() -> reducedLevel.writeTile(column, row, image));
+            }
          }
+      };
+
+      final int tileImageWidth = _pyramid.getTileImageWidth();
+      final int tileImageHeight = _pyramid.getTileImageHeight();
+      LevelReducer reducer = null;
+      for (int level = coarsestLevel; level < maxLevel; level++) {
+         reducer = new LevelReducer(level, tileImageWidth, tileImageHeight, consumer, reducer, tilesExecutor);
       }
+      return reducer;
+   }
 
-      BufferedImage currentImage = geoImage._bufferedImage;
+
+   /**
+    * Every level is rescaled from the coarsest overview still at or above its resolution, or from the previous level if
+    * there is no such overview (and from the full resolution image when there is no previous level).
+    */
+   private void processOverviews(final GEOImageReader reader,
+                                 final Level[] levels,
+                                 final int minLevel,
+                                 final int maxLevel,
+                                 final BoundedExecutor tasks) throws IOException {
+      Logger.log("Overviews: " + reader.getNumberOfOverviews());
+
+      int currentOverview = -1;
+      GEOSector currentSector = null;
+      BufferedImage currentImage = null;
       for (int i = maxLevel; i >= minLevel; i--) {
-         final Level level = levels[i];
-         currentImage = level.process(_outputDirectory, geoImage._sector, currentImage);
+         if (isCompleted(reader, levels, minLevel, i)) {
+            break;
+         }
+         final int overview = reader.getBestOverview(_pyramid.resolutionForLevel(i));
+         if ((overview != -1) && (overview != currentOverview)) {
+            Logger.log("Reading overview #" + overview + " for level " + i + "...");
+            final GEOImage overviewImage = reader.readOverview(overview);
+            Logger.log("Read overview " + overviewImage._bufferedImage.getWidth() + "x"
+                       + overviewImage._bufferedImage.getHeight());
+            currentOverview = overview;
+            currentSector = overviewImage._sector;
+            currentImage = overviewImage._bufferedImage;
+         }
+         else if (currentImage == null) {
+            final GEOImage geoImage = read(reader);
+            currentSector = geoImage._sector;
+            currentImage = geoImage._bufferedImage;
+         }
+
+         currentImage = levels[i].process(currentSector, currentImage, tasks);
          if (currentImage == null) {
             break;
          }
-         levels[i] = null; // release some memory
       }
+   }
+
 
+   private void process(final ExecutorService tilesExecutor) throws IOException {
+      final BoundedExecutor tasks = new BoundedExecutor(tilesExecutor, _settings.getMaxTilesInFlight());
+      final TilesManifestWriter manifest = new TilesManifestWriter(_outputDirectory);
+      final TileDeduplicator deduplicator = _settings.isDeduplicate() ? TileDeduplicator.createDefault() : null;
+      TileSink sink = null;
+      Throwable failure = null;
+      try {
+         sink = _settings.getOutputFormat().createSink(_outputDirectory, _pyramid, "png");
+         process(tasks, tilesExecutor, manifest, sink, deduplicator);
+         tasks.awaitCompletion();
+      }
+      catch (final IOException | RuntimeException | Error e) {
+         failure = e;
+         // the tiles in flight still write to the sink and record in the manifest, they finish before closing them
+         tasks.awaitCompletion(e);
+         throw e;
+      }
+      finally {
+         close(sink, manifest, failure);
+      }
+      Logger.log("Manifest " + manifest);
+      if (deduplicator != null) {
+         Logger.log("Copied " + deduplicator.getCopiesCount() + " identical tiles");
+      }
 
       Logger.log("done!");
    }
 
 
+   /**
+    * Closes the sink (if created) and the manifest. Their failures are attached (suppressed) to the given failure instead
+    * of replacing it, or the first one is thrown if there is no failure.
+    */
+   private static void close(final TileSink sink,
+                             final TilesManifestWriter manifest,
+                             final Throwable failure) throws IOException {
+      Exception closeFailure = null;
+      if (sink != null) {
+         try {
+            sink.close();
+         }
+         catch (final IOException | RuntimeException e) {
+            closeFailure = e;
+         }
+      }
+      try {
+         manifest.close();
+      }
+      catch (final IOException | RuntimeException e) {
+         if (closeFailure == null) {
+            closeFailure = e;
+         }
+         else {
+            closeFailure.addSuppressed(e);
+         }
+      }
+
+      if (closeFailure == null) {
+         return;
+      }
+      if (failure != null) {
+         failure.addSuppressed(closeFailure);
+         return;
+      }
+      if (closeFailure instanceof IOException) {
+         throw (IOException) closeFailure;
+      }
+      throw (RuntimeException) closeFailure;
+   }
+
+
+   /**
+    * Answers true if every level from maxLevel down to minLevel was completed by a previous run, or isn't producible.
+    */
+   private boolean isCompleted(final GEOImageReader reader,
+                               final Level[] levels,
+                               final int minLevel,
+                               final int maxLevel) {
+      for (int i = maxLevel; i >= minLevel; i--) {
+         if (!isProducible(reader, i)) {
+            return true;
+         }
+         if (!levels[i].isCompleted()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+
+   private void process(final BoundedExecutor tasks,
+                        final ExecutorService tilesExecutor,
+                        final TilesManifestWriter manifest,
+                        final TileSink sink,
+                        final TileDeduplicator deduplicator) throws IOException {
+      Logger.log("Reading image \"" + _inputFile.getAbsolutePath() + "\"...");
+      final GEOImageReader reader = new GEOImageReader(_inputFile);
+      try {
+         _pyramid.checkCRS(reader.getCRS());
+
+         final GEOSector sector = reader._sector;
+         Logger.log("Read image, sector " + sector);
+
+         final int minLevel = 0;
+         final int maxLevel = _pyramid.bestLevelForResolution(reader._resolution.getX(), reader._resolution.getY());
+         Logger.log("MaxLevel: " + maxLevel);
+
+         final boolean warp = _pyramid.needsWarp(reader.getCRS());
+         if (warp) {
+            Logger.log("Warping from " + reader.getCRS().getName());
+         }
+
+         final Level[] levels = new Level[maxLevel + 1];
+         for (int i = minLevel; i <= maxLevel; i++) {
+            // without resuming the output directory was emptied, and the previous level reads as empty
+            final TilesManifestLevel previous = TilesManifestLevel.read(_outputDirectory, i);
+            if (_settings.isResume()) {
+               Logger.log("Resuming " + previous);
+               manifest.resume(previous);
+            }
+            levels[i] = new Level(_pyramid, _pyramid.getTileRange(sector, i), sink, manifest, previous, warp, _resampler,
+                     deduplicator);
+         }
+
+         if (isCompleted(reader, levels, minLevel, maxLevel)) {
+            Logger.log("All levels already completed");
+            return;
+         }
+
+         if (_settings.getLevelStrategy() == TilerSettings.LevelStrategy.REDUCE) {
+            if (isProducible(reader, maxLevel)) {
+               final Level level = levels[maxLevel];
+
+               final LevelReducer reducer = createReducers(reader, levels, minLevel, maxLevel, tasks, tilesExecutor);
+               final GEOImage geoImage = _settings.isStreaming() ? null : read(reader);
+               level.processReducing(geoImage, reader, _settings.getTilesPerBatch(), tasks, tilesExecutor,
+                        reducer);
+               if (reducer != null) {
+                  reducer.finish();
+               }
+            }
+         }
+         else if (_settings.isStreaming()) {
+            final boolean useOverviews = (_settings.getLevelStrategy() == TilerSettings.LevelStrategy.OVERVIEWS);
+            final OverviewPolicy overviewPolicy = useOverviews ? OverviewPolicy.QUALITY : OverviewPolicy.IGNORE;
+            for (int i = maxLevel; i >= minLevel; i--) {
+               final Level level = levels[i];
+               if (!level.processStreaming(reader, overviewPolicy, _settings.getTilesPerBatch(), tasks)) {
+                  break;
+               }
+            }
+         }
+         else if (_settings.getLevelStrategy() == TilerSettings.LevelStrategy.OVERVIEWS) {
+            processOverviews(reader, levels, minLevel, maxLevel, tasks);
+         }
+         else {
+            final GEOImage geoImage = read(reader);
+
+            BufferedImage currentImage = geoImage._bufferedImage;
+            for (int i = maxLevel; i >= minLevel; i--) {
+               if (isCompleted(reader, levels, minLevel, i)) {
+                  break;
+               }
+               final Level level = levels[i];
+               currentImage = level.process(geoImage._sector, currentImage, tasks);
+               if (currentImage == null) {
+                  break;
+               }
+            }
+         }
+      }
+      finally {
+         reader.dispose();
+      }
+   }
+
+
    public static void main(final String[] args) throws IOException {
       System.out.println("Tiler 0.1");
       System.out.println("---------\n");
@@ -0,0 +1,256 @@
+
+
+package com.glob3mobile.tools.tiling;
+
+import com.glob3mobile.tools.tiling.output.OutputFormat;
+import com.glob3mobile.utils.MemoryBudget;
+import com.glob3mobile.utils.ResamplingKernel;
+import com.glob3mobile.utils.StringUtils;
+
+
+public class TilerSettings {
+
+
+   public static TilerSettings createDefault() {
+      return new TilerSettings();
+   }
+
+
+   /**
+    * How the levels coarser than the deepest one are produced.
+    */
+   public static enum LevelStrategy {
+      /**
+       * Every level is rendered by rescaling the source image.
+       */
+      RESCALE,
+      /**
+       * Only the deepest level is rendered from the source; every coarser tile is the 2x2 reduction of its four children.
+       */
+      REDUCE,
+      /**
+       * Every level is rendered from the coarsest GeoTIFF overview at or above its resolution (if any), reading only that
+       * overview.
+       */
+      OVERVIEWS
+   }
+
+
+   private boolean          _streaming        = false;
+   private int              _tilesPerBatch    = 32;
+   private int              _threads          = Runtime.getRuntime().availableProcessors();
+   private int              _maxTilesInFlight = 4 * _threads;
+   private int              _concurrentFiles  = 1;
+   private long             _memoryBudget     = MemoryBudget.defaultBudget();
+   private LevelStrategy    _levelStrategy    = LevelStrategy.RESCALE;
+   private ResamplingKernel _resamplingKernel = ResamplingKernel.BICUBIC;
+   private boolean          _resume           = false;
+   private OutputFormat     _outputFormat     = OutputFormat.DIRECTORY;
+   private boolean          _deduplicate      = false;
+
+
+   public TilerSettings() {
+   }
+
+
+   /**
+    * When streaming, the source image is never materialized. Each level reads from the GeoTIFF only the pixel windows
+    * covering the batch of tiles currently being produced, so the peak memory depends on the batch size, not on the
+    * scene size.
+    */
+   public boolean isStreaming() {
+      return _streaming;
+   }
+
+
+   public void setStreaming(final boolean streaming) {
+      _streaming = streaming;
+   }
+
+
+   /**
+    * Maximum number of (contiguous, same row) tiles read as a single window in streaming mode.
+    */
+   public int getTilesPerBatch() {
+      return _tilesPerBatch;
+   }
+
+
+   public void setTilesPerBatch(final int tilesPerBatch) {
+      if (tilesPerBatch < 1) {
+         throw new IllegalArgumentException("tilesPerBatch must be positive");
+      }
+      _tilesPerBatch = tilesPerBatch;
+   }
+
+
+   /**
+    * Number of threads cutting and encoding tiles. With 1 thread the tiles are processed in the calling thread.
+    */
+   public int getThreads() {
+      return _threads;
+   }
+
+
+   public void setThreads(final int threads) {
+      if (threads < 1) {
+         throw new IllegalArgumentException("threads must be positive");
+      }
+      _threads = threads;
+   }
+
+
+   /**
+    * Maximum number of tiles submitted and not yet written. Bounds the memory retained by pending tiles (and by the level
+    * images they reference) while the next level is being prepared.
+    */
+   public int getMaxTilesInFlight() {
+      return _maxTilesInFlight;
+   }
+
+
+   public void setMaxTilesInFlight(final int maxTilesInFlight) {
+      if (maxTilesInFlight < 1) {
+         throw new IllegalArgumentException("maxTilesInFlight must be positive");
+      }
+      _maxTilesInFlight = maxTilesInFlight;
+   }
+
+
+   /**
+    * Maximum number of GeoTIFFs processed at the same time by processDirectory(). By default the files are processed one
+    * after the other; more concurrent files have to be asked for explicitly.
+    */
+   public int getConcurrentFiles() {
+      return _concurrentFiles;
+   }
+
+
+   public void setConcurrentFiles(final int concurrentFiles) {
+      if (concurrentFiles < 1) {
+         throw new IllegalArgumentException("concurrentFiles must be positive");
+      }
+      _concurrentFiles = concurrentFiles;
+   }
+
+
+   /**
+    * Bytes of heap the files processed concurrently by processDirectory() can use, according to their estimated decoded
+    * size. A file estimated bigger than the budget is processed alone.
+    */
+   public long getMemoryBudget() {
+      return _memoryBudget;
+   }
+
+
+   public void setMemoryBudget(final long memoryBudget) {
+      if (memoryBudget <= 0) {
+         throw new IllegalArgumentException("memoryBudget must be positive");
+      }
+      _memoryBudget = memoryBudget;
+   }
+
+
+   public LevelStrategy getLevelStrategy() {
+      return _levelStrategy;
+   }
+
+
+   public void setLevelStrategy(final LevelStrategy levelStrategy) {
+      if (levelStrategy == null) {
+         throw new IllegalArgumentException("levelStrategy can't be null");
+      }
+      _levelStrategy = levelStrategy;
+   }
+
+
+   /**
+    * Kernel used to rescale the images the levels are cut from.
+    */
+   public ResamplingKernel getResamplingKernel() {
+      return _resamplingKernel;
+   }
+
+
+   public void setResamplingKernel(final ResamplingKernel resamplingKernel) {
+      if (resamplingKernel == null) {
+         throw new IllegalArgumentException("resamplingKernel can't be null");
+      }
+      _resamplingKernel = resamplingKernel;
+   }
+
+
+   /**
+    * When resuming, the output directory isn't emptied: the tiles (and the levels) recorded by the manifest of a previous
+    * run are skipped, and the new records are appended to that manifest.
+    */
+   public boolean isResume() {
+      return _resume;
+   }
+
+
+   public void setResume(final boolean resume) {
+      _resume = resume;
+   }
+
+
+   public OutputFormat getOutputFormat() {
+      return _outputFormat;
+   }
+
+
+   public void setOutputFormat(final OutputFormat outputFormat) {
+      if (outputFormat == null) {
+         throw new IllegalArgumentException("outputFormat can't be null");
+      }
+      _outputFormat = outputFormat;
+   }
+
+
+   /**
+    * When deduplicating, a tile with the same pixels as a recently written one is stored as a copy of it (a hard link, a
+    * shared archive entry...) instead of being encoded again.
+    * <p>
+    * Off by default: in a DIRECTORY output the linked tiles share their file, so editing one changes all of them, and
+    * copying the output without preserving the hard links (cp, rsync or tar without -H) silently duplicates them again.
+    */
+   public boolean isDeduplicate() {
+      return _deduplicate;
+   }
+
+
+   public void setDeduplicate(final boolean deduplicate) {
+      _deduplicate = deduplicate;
+   }
+
+
+   @Override
+   public String toString() {
+      final StringBuilder builder = new StringBuilder();
+      builder.append("[TilerSettings streaming=");
+      builder.append(_streaming);
+      builder.append(", tilesPerBatch=");
+      builder.append(_tilesPerBatch);
+      builder.append(", threads=");
+      builder.append(_threads);
+      builder.append(", maxTilesInFlight=");
+      builder.append(_maxTilesInFlight);
+      builder.append(", concurrentFiles=");
+      builder.append(_concurrentFiles);
+      builder.append(", memoryBudget=");
+      builder.append(StringUtils.getSpaceMessage(_memoryBudget));
+      builder.append(", levelStrategy=");
+      builder.append(_levelStrategy);
+      builder.append(", resamplingKernel=");
+      builder.append(_resamplingKernel);
+      builder.append(", resume=");
+      builder.append(_resume);
+      builder.append(", outputFormat=");
+      builder.append(_outputFormat);
+      builder.append(", deduplicate=");
+      builder.append(_deduplicate);
+      builder.append("]");
+      return builder.toString();
+   }
+
+}
@@ -6,13 +6,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import com.glob3mobile.tools.tiling.output.OutputFormat;
+import com.glob3mobile.tools.tiling.output.TileSink;
 import com.glob3mobile.tools.tiling.pyramid.MergedPyramid;
 import com.glob3mobile.tools.tiling.pyramid.Pyramid;
 import com.glob3mobile.tools.tiling.pyramid.SourcePyramid;
@@ -20,6 +17,7 @@ import com.glob3mobile.tools.tiling.pyramid.WebMercatorPyramid;
 import com.glob3mobile.utils.IOUtils;
 import com.glob3mobile.utils.Logger;
 import com.glob3mobile.utils.Progress;
+import com.glob3mobile.utils.Resampler;
 
 
 public class TilesMixer {
@@ -28,6 +26,30 @@ public class TilesMixer {
                                             final String inputDirectoryName,
                                             final String outputDirectoryName,
                                             final float jpegQuality) throws IOException {
+      processSubdirectories(pyramid, inputDirectoryName, outputDirectoryName, jpegQuality, OutputFormat.DIRECTORY);
+   }
+
+
+   public static void processSubdirectories(final Pyramid pyramid,
+                                            final String inputDirectoryName,
+                                            final String outputDirectoryName,
+                                            final float jpegQuality,
+                                            final OutputFormat outputFormat) throws IOException {
+      processSubdirectories(pyramid, inputDirectoryName, outputDirectoryName, jpegQuality, outputFormat, false);
+   }
+
+
+   /**
+    * @param deduplicate
+    *           true to store the tiles identical to a recently stored one as copies of it (hard links in a DIRECTORY
+    *           output), see TilerSettings.isDeduplicate()
+    */
+   public static void processSubdirectories(final Pyramid pyramid,
+                                            final String inputDirectoryName,
+                                            final String outputDirectoryName,
+                                            final float jpegQuality,
+                                            final OutputFormat outputFormat,
+                                            final boolean deduplicate) throws IOException {
       final File inputDirectory = new File(inputDirectoryName);
       if (!inputDirectory.exists()) {
          throw new IOException("Input directory \"" + inputDirectoryName + "\" doesn't exist");
@@ -44,7 +66,8 @@ public class TilesMixer {
       .map(source -> new File(inputDirectory, source).getAbsolutePath()) //
       .collect(Collectors.toList());
 
-      final TilesMixer mixer = new TilesMixer(pyramid, inputDirectoriesNames, outputDirectoryName, jpegQuality);
+      final TilesMixer mixer = new TilesMixer(pyramid, inputDirectoriesNames, outputDirectoryName, jpegQuality, outputFormat,
+               deduplicate);
       mixer.process();
    }
 
@@ -53,21 +76,50 @@ public class TilesMixer {
                                          final List<String> inputDirectoriesNames,
                                          final String outputDirectoryName,
                                          final float jpegQuality) throws IOException {
-      final TilesMixer mixer = new TilesMixer(pyramid, inputDirectoriesNames, outputDirectoryName, jpegQuality);
+      processDirectories(pyramid, inputDirectoriesNames, outputDirectoryName, jpegQuality, OutputFormat.DIRECTORY);
+   }
+
+
+   public static void processDirectories(final Pyramid pyramid,
+                                         final List<String> inputDirectoriesNames,
+                                         final String outputDirectoryName,
+                                         final float jpegQuality,
+                                         final OutputFormat outputFormat) throws IOException {
+      processDirectories(pyramid, inputDirectoriesNames, outputDirectoryName, jpegQuality, outputFormat, false);
+   }
+
+
+   /**
+    * @param deduplicate
+    *           true to store the tiles identical to a recently stored one as copies of it (hard links in a DIRECTORY
+    *           output), see TilerSettings.isDeduplicate()
+    */
+   public static void processDirectories(final Pyramid pyramid,
+                                         final List<String> inputDirectoriesNames,
+                                         final String outputDirectoryName,
+                                         final float jpegQuality,
+                                         final OutputFormat outputFormat,
+                                         final boolean deduplicate) throws IOException {
+      final TilesMixer mixer = new TilesMixer(pyramid, inputDirectoriesNames, outputDirectoryName, jpegQuality, outputFormat,
+               deduplicate);
       mixer.process();
    }
 
 
-   private final Pyramid _pyramid;
-   private final File[]  _inputDirectories;
-   private final File    _outputDirectory;
-   private final float   _jpegQuality;
+   private final Pyramid      _pyramid;
+   private final File[]       _inputDirectories;
+   private final File         _outputDirectory;
+   private final float        _jpegQuality;
+   private final OutputFormat _outputFormat;
+   private final boolean      _deduplicate;
 
 
    TilesMixer(final Pyramid pyramid,
               final List<String> inputDirectoriesNames,
               final String outputDirectoryName,
-              final float jpegQuality) throws IOException {
+              final float jpegQuality,
+              final OutputFormat outputFormat,
+              final boolean deduplicate) throws IOException {
       _pyramid = pyramid;
       _inputDirectories = new File[inputDirectoriesNames.size()];
       for (int i = 0; i < inputDirectoriesNames.size(); i++) {
@@ -81,73 +133,27 @@ public class TilesMixer {
       IOUtils.ensureEmptyDirectory(_outputDirectory);
 
       _jpegQuality = jpegQuality;
+      _outputFormat = outputFormat;
+      _deduplicate = deduplicate;
    }
 
 
    private SourcePyramid[] getSourcePyramids() throws IOException {
-      final int length = _inputDirectories.length;
-      final SourcePyramid[] sourcePyramids = new SourcePyramid[length];
-      for (int i = 0; i < length; i++) {
-         final File inputDirectory = _inputDirectories[i];
-         sourcePyramids[i] = new SourcePyramid(inputDirectory);
-      }
-      return sourcePyramids;
-   }
-
-   private static class DefaultThreadFactory
-      implements
-         ThreadFactory {
-      private static final AtomicInteger poolNumber    = new AtomicInteger(1);
-
-      private final ThreadGroup          _group;
-      private final AtomicInteger        _threadNumber = new AtomicInteger(1);
-      private final String               _namePrefix;
-      private final int                  _threadPriority;
-
-
-      DefaultThreadFactory(final int threadPriority) {
-         final SecurityManager s = System.getSecurityManager();
-         _group = (s != null) ? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
-         _namePrefix = "pool-" + poolNumber.getAndIncrement() + "-thread-";
-         _threadPriority = threadPriority;
-      }
-
-
-      @Override
-      public Thread newThread(final Runnable runnable) {
-         final Thread t = new Thread(_group, runnable, _namePrefix + _threadNumber.getAndIncrement(), 0);
-         //         if (t.isDaemon()) {
-         t.setDaemon(false);
-         //         }
-         //         if (t.getPriority() != _threadPriority) {
-         t.setPriority(_threadPriority);
-         //         }
-         return t;
-      }
-   }
-
-
-   private static ThreadFactory defaultThreadFactory(final int threadPriority) {
-      return new DefaultThreadFactory(threadPriority);
+      return SourcePyramid.open(_inputDirectories);
    }
 
 
    private void process() throws IOException {
-      final MergedPyramid mergedPyramid = new MergedPyramid(_pyramid, getSourcePyramids(), _jpegQuality);
+      final MergedPyramid mergedPyramid = new MergedPyramid(_pyramid, getSourcePyramids(), _jpegQuality,
+               Resampler.createDefault(), _deduplicate);
       //mergedPyramid.merge(_outputDirectory);
 
-      final int scaleFactor = 2;
-      final int cpus = Runtime.getRuntime().availableProcessors();
-      final int maxThreads = Math.max(cpus * scaleFactor, 1);
-
-      final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, maxThreads, 10, TimeUnit.SECONDS,
-               new SynchronousQueue<Runnable>(), defaultThreadFactory(Thread.NORM_PRIORITY));
-      executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+      // the I/O bound stages get more threads, they spend most of their time waiting for the disks
+      final int cpuThreads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+      final int ioThreads = cpuThreads * 2;
 
-
-      final Object mutex = new Object();
-
-      final long steps = mergedPyramid.getTilesCount();
+      // an upper bound, the merge corrects it level by level
+      final long steps = mergedPyramid.getMaxTilesCount();
 
       final Progress progress = new Progress(steps, 10, false) {
          @Override
@@ -159,16 +165,13 @@ public class TilesMixer {
          }
       };
 
-      mergedPyramid.process(_outputDirectory, progress, executor, mutex);
-
-      executor.shutdown();
-      try {
-         executor.awaitTermination(2, TimeUnit.DAYS);
-      }
-      catch (final InterruptedException e) {
-         throw new RuntimeException(e);
+      try (final TileSink sink = _outputFormat.createSink(_outputDirectory, _pyramid, "jpg")) {
+         mergedPyramid.process(sink, progress, cpuThreads, ioThreads);
       }
       progress.finish();
+      if (_deduplicate) {
+         Logger.log("Copied " + mergedPyramid.getCopiedTilesCount() + " identical tiles");
+      }
 
       Logger.log("done!");
    }
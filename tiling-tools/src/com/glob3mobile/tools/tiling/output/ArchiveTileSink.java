@@ -0,0 +1,272 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.glob3mobile.utils.Logger;
+
+
+/**
+ * Appends the tiles to a single archive file (see TileArchive for the layout), writing the sorted index on close.
+ * <p>
+ * The header keeps pointing to the index of the previous run until the new index is on disk, so an interrupted run
+ * leaves the archive as it was (plus some unreferenced data). For the same reason the callbacks are called on close,
+ * once the index is stored.
+ */
+public class ArchiveTileSink
+   implements
+      TileSink {
+
+   private static class Entry {
+      private final long _key;
+      private final long _offset;
+      private final int  _length;
+
+
+      private Entry(final long key,
+                    final long offset,
+                    final int length) {
+         _key = key;
+         _offset = offset;
+         _length = length;
+      }
+   }
+
+
+   private final File             _file;
+   private final String           _format;
+   private final FileChannel      _channel;
+   private final Map<Long, Entry> _entries    = new HashMap<Long, Entry>();
+   private final List<Callback>   _callbacks  = new ArrayList<Callback>();
+   private long                   _position;
+   private long                   _tilesCount = 0;
+   private boolean                _closed     = false;
+
+
+   /**
+    * @param format
+    *           the format of the tiles data, "png" or "jpg"
+    */
+   public ArchiveTileSink(final File file,
+                          final String format) throws IOException {
+      _file = file;
+      _format = format;
+      _channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+         // a shorter file was left by a run that died while creating it
+         if (_channel.size() >= TileArchive.HEADER_SIZE) {
+            readPreviousIndex();
+         }
+         else {
+            _channel.truncate(0);
+            writeHeader(0);
+         }
+         _position = _channel.size();
+      }
+      catch (final IOException | RuntimeException e) {
+         _channel.close();
+         throw e;
+      }
+   }
+
+
+   private void readPreviousIndex() throws IOException {
+      final ByteBuffer header = readFully(0, TileArchive.HEADER_SIZE);
+      if ((header.getInt(0) != TileArchive.MAGIC) || (header.getInt(4) != TileArchive.VERSION)) {
+         throw new IOException("Invalid archive \"" + _file.getAbsolutePath() + "\"");
+      }
+      if (header.getLong(8) == 0) {
+         // the first run died before writing any index, nothing to keep
+         _channel.truncate(TileArchive.HEADER_SIZE);
+         return;
+      }
+
+      final long indexOffset = header.getLong(8);
+      final int formatLength = readFully(indexOffset, 4).getInt(0);
+      final String format = new String(readFully(indexOffset + 4, formatLength).array(), StandardCharsets.UTF_8);
+      if (!format.equals(_format)) {
+         throw new IOException("The archive \"" + _file.getAbsolutePath() + "\" holds " + format + " tiles, not " + _format);
+      }
+      final long entriesOffset = indexOffset + 4 + formatLength + 8;
+      final int entriesCount = readFully(indexOffset + 4 + formatLength, 4).getInt(0);
+      // read in chunks, the index of a large archive doesn't fit in a single buffer
+      final int entriesPerChunk = 64 * 1024;
+      for (int first = 0; first < entriesCount; first += entriesPerChunk) {
+         final int count = Math.min(entriesPerChunk, entriesCount - first);
+         final ByteBuffer entries = readFully(entriesOffset + ((long) first * TileArchive.ENTRY_SIZE),
+                  count * TileArchive.ENTRY_SIZE);
+         for (int i = 0; i < count; i++) {
+            final int position = i * TileArchive.ENTRY_SIZE;
+            final long key = TileArchive.toKey(entries.getInt(position), entries.getInt(position + 4),
+                     entries.getInt(position + 8));
+            _entries.put(key, new Entry(key, entries.getLong(position + 12), entries.getInt(position + 20)));
+         }
+      }
+   }
+
+
+   private ByteBuffer readFully(final long position,
+                                final int length) throws IOException {
+      final ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+         if (_channel.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Truncated archive \"" + _file.getAbsolutePath() + "\"");
+         }
+      }
+      buffer.flip();
+      return buffer;
+   }
+
+
+   private void writeFully(final ByteBuffer buffer,
+                           final long position) throws IOException {
+      long current = position;
+      while (buffer.hasRemaining()) {
+         current += _channel.write(buffer, current);
+      }
+   }
+
+
+   private void writeHeader(final long indexOffset) throws IOException {
+      final ByteBuffer header = ByteBuffer.allocate(TileArchive.HEADER_SIZE);
+      header.putInt(TileArchive.MAGIC);
+      header.putInt(TileArchive.VERSION);
+      header.putLong(indexOffset);
+      header.flip();
+      writeFully(header, 0);
+   }
+
+
+   @Override
+   public synchronized void write(final int level,
+                                  final int column,
+                                  final int row,
+                                  final byte[] data,
+                                  final Callback callback) throws IOException {
+      final long key = TileArchive.toKey(level, column, row);
+      writeFully(ByteBuffer.wrap(data), _position);
+      _entries.put(key, new Entry(key, _position, data.length));
+      _position += data.length;
+      _tilesCount++;
+      if (callback != null) {
+         _callbacks.add(callback);
+      }
+   }
+
+
+   /**
+    * The copy shares the index entry (offset and length) of the source, nothing is appended.
+    */
+   @Override
+   public synchronized void writeCopy(final int level,
+                                      final int column,
+                                      final int row,
+                                      final int sourceLevel,
+                                      final int sourceColumn,
+                                      final int sourceRow,
+                                      final Callback callback) throws IOException {
+      final Entry source = _entries.get(TileArchive.toKey(sourceLevel, sourceColumn, sourceRow));
+      if (source == null) {
+         throw new IOException("Can't copy the missing tile " + sourceLevel + "/" + sourceColumn + "/" + sourceRow + " of "
+                               + this);
+      }
+      final long key = TileArchive.toKey(level, column, row);
+      _entries.put(key, new Entry(key, source._offset, source._length));
+      _tilesCount++;
+      if (callback != null) {
+         _callbacks.add(callback);
+      }
+   }
+
+
+   @Override
+   public synchronized byte[] read(final int level,
+                                   final int column,
+                                   final int row) throws IOException {
+      final Entry entry = _entries.get(TileArchive.toKey(level, column, row));
+      return (entry == null) ? null : readFully(entry._offset, entry._length).array();
+   }
+
+
+   @Override
+   public synchronized void close() throws IOException {
+      if (_closed) {
+         return;
+      }
+      _closed = true;
+
+      try {
+         final long indexOffset = _position;
+         writeIndex(indexOffset);
+         _channel.force(false);
+         writeHeader(indexOffset);
+         _channel.force(false);
+      }
+      finally {
+         _channel.close();
+      }
+
+      for (final Callback callback : _callbacks) {
+         callback.stored();
+      }
+      _callbacks.clear();
+      Logger.log("Written " + _tilesCount + " tiles to \"" + _file.getAbsolutePath() + "\"");
+   }
+
+
+   private void writeIndex(final long indexOffset) throws IOException {
+      final Entry[] entries = _entries.values().toArray(new Entry[_entries.size()]);
+      Arrays.sort(entries, new Comparator<Entry>() {
+         @Override
+         public int compare(final Entry e1,
+                            final Entry e2) {
+            return Long.compare(e1._key, e2._key);
+         }
+      });
+      int largestTileLength = 0;
+      for (final Entry entry : entries) {
+         largestTileLength = Math.max(largestTileLength, entry._length);
+      }
+
+      _channel.truncate(indexOffset);
+      _channel.position(indexOffset);
+      // not closed, it would close the channel
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(_channel),
+               64 * 1024));
+      final byte[] format = _format.getBytes(StandardCharsets.UTF_8);
+      output.writeInt(format.length);
+      output.write(format);
+      output.writeInt(entries.length);
+      output.writeInt(largestTileLength);
+      for (final Entry entry : entries) {
+         output.writeInt((int) (entry._key >>> 56));
+         output.writeInt((int) ((entry._key >>> 28) & 0xFFFFFFF));
+         output.writeInt((int) (entry._key & 0xFFFFFFF));
+         output.writeLong(entry._offset);
+         output.writeInt(entry._length);
+      }
+      output.flush();
+   }
+
+
+   @Override
+   public String toString() {
+      return "[ArchiveTileSink " + _file + "]";
+   }
+
+}
@@ -0,0 +1,116 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.glob3mobile.utils.IOUtils;
+
+
+/**
+ * Writes every tile to its own file, &lt;level&gt;/&lt;column&gt;/&lt;row&gt;.&lt;extension&gt;, the layout read back by
+ * SourcePyramid.
+ */
+public class DirectoryTileSink
+   implements
+      TileSink {
+
+   private final File   _directory;
+   private final String _extension;
+
+
+   public DirectoryTileSink(final File directory,
+                            final String extension) throws IOException {
+      IOUtils.ensureDirectory(directory);
+      _directory = directory;
+      _extension = extension;
+   }
+
+
+   public File getTileFile(final int level,
+                           final int column,
+                           final int row) {
+      return new File(_directory, level + "/" + column + "/" + row + "." + _extension);
+   }
+
+
+   @Override
+   public void write(final int level,
+                     final int column,
+                     final int row,
+                     final byte[] data,
+                     final Callback callback) throws IOException {
+      final File output = getTileFile(level, column, row);
+      ensureParentDirectory(output);
+      IOUtils.writeAtomically(data, output);
+      if (callback != null) {
+         callback.stored();
+      }
+   }
+
+
+   /**
+    * The copy is a hard link to the source file (or a plain copy if the filesystem doesn't support links), renamed into
+    * place so the output is never half written.
+    */
+   @Override
+   public void writeCopy(final int level,
+                         final int column,
+                         final int row,
+                         final int sourceLevel,
+                         final int sourceColumn,
+                         final int sourceRow,
+                         final Callback callback) throws IOException {
+      final File source = getTileFile(sourceLevel, sourceColumn, sourceRow);
+      final File output = getTileFile(level, column, row);
+      ensureParentDirectory(output);
+      final File temporary = new File(output.getParentFile(), output.getName() + ".tmp");
+      Files.deleteIfExists(temporary.toPath());
+      try {
+         Files.createLink(temporary.toPath(), source.toPath());
+      }
+      catch (final UnsupportedOperationException | FileSystemException e) {
+         Files.copy(source.toPath(), temporary.toPath());
+      }
+      Files.move(temporary.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      if (callback != null) {
+         callback.stored();
+      }
+   }
+
+
+   private static void ensureParentDirectory(final File output) throws IOException {
+      final File parentDirectory = output.getParentFile();
+      if (!parentDirectory.exists()) {
+         // another thread could be creating the same directory
+         if (!parentDirectory.mkdirs() && !parentDirectory.isDirectory()) {
+            throw new IOException("Can't create directory \"" + parentDirectory.getAbsolutePath() + "\"");
+         }
+      }
+   }
+
+
+   @Override
+   public byte[] read(final int level,
+                      final int column,
+                      final int row) throws IOException {
+      final File file = getTileFile(level, column, row);
+      return file.exists() ? Files.readAllBytes(file.toPath()) : null;
+   }
+
+
+   @Override
+   public void close() {
+   }
+
+
+   @Override
+   public String toString() {
+      return "[DirectoryTileSink " + _directory + "]";
+   }
+
+}
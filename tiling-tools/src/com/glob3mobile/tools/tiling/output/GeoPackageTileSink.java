@@ -0,0 +1,243 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+
+import com.glob3mobile.tools.tiling.pyramid.Pyramid;
+
+
+/**
+ * Writes the tiles into the tiles table of an OGC GeoPackage (1.2) file, committing a transaction per level (split every
+ * TILES_PER_TRANSACTION tiles, so a huge level doesn't grow the WAL without bound).
+ * <p>
+ * The tile matrix set and the tile matrices are derived from the Pyramid. The rows aren't flipped, the GeoPackage tile
+ * row 0 is at the north as in the tiles files.
+ */
+public class GeoPackageTileSink
+   extends
+      SQLiteTileSink {
+
+   private static final int    TILES_PER_TRANSACTION = 65536;
+
+   private static final int    APPLICATION_ID        = 0x47504B47; // "GPKG"
+   private static final int    USER_VERSION          = 10200;
+
+   private static final String TABLE_NAME            = "tiles";
+
+   private final Pyramid       _pyramid;
+   private final String        _format;
+
+
+   /**
+    * @param format
+    *           the format of the tiles data, "png" or "jpg"
+    */
+   public GeoPackageTileSink(final File file,
+                             final Pyramid pyramid,
+                             final String format) throws IOException {
+      super(file, TILES_PER_TRANSACTION, true);
+      _pyramid = pyramid;
+      _format = format;
+      try {
+         createSchema();
+      }
+      catch (final SQLException | FactoryException e) {
+         closeQuietly(getConnection());
+         throw new IOException("Can't initialize \"" + file.getAbsolutePath() + "\"", e);
+      }
+      start();
+   }
+
+
+   private void createSchema() throws SQLException, FactoryException {
+      final int srsId = _pyramid.getEPSGCode();
+      final double[] bounds = _pyramid.getProjectedBounds();
+
+      try (final Statement statement = getConnection().createStatement()) {
+         statement.execute("PRAGMA application_id=" + APPLICATION_ID);
+         statement.execute("PRAGMA user_version=" + USER_VERSION);
+
+         statement.execute("CREATE TABLE IF NOT EXISTS gpkg_spatial_ref_sys (" //
+                           + "srs_name TEXT NOT NULL, " //
+                           + "srs_id INTEGER NOT NULL PRIMARY KEY, " //
+                           + "organization TEXT NOT NULL, " //
+                           + "organization_coordsys_id INTEGER NOT NULL, " //
+                           + "definition TEXT NOT NULL, " //
+                           + "description TEXT)");
+         statement.execute("CREATE TABLE IF NOT EXISTS gpkg_contents (" //
+                           + "table_name TEXT NOT NULL PRIMARY KEY, " //
+                           + "data_type TEXT NOT NULL, " //
+                           + "identifier TEXT UNIQUE, " //
+                           + "description TEXT DEFAULT '', " //
+                           + "last_change DATETIME NOT NULL DEFAULT (strftime('%Y-%m-%dT%H:%M:%fZ','now')), " //
+                           + "min_x DOUBLE, min_y DOUBLE, max_x DOUBLE, max_y DOUBLE, " //
+                           + "srs_id INTEGER, " //
+                           + "CONSTRAINT fk_gc_r_srs_id FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys(srs_id))");
+         statement.execute("CREATE TABLE IF NOT EXISTS gpkg_tile_matrix_set (" //
+                           + "table_name TEXT NOT NULL PRIMARY KEY, " //
+                           + "srs_id INTEGER NOT NULL, " //
+                           + "min_x DOUBLE NOT NULL, min_y DOUBLE NOT NULL, max_x DOUBLE NOT NULL, max_y DOUBLE NOT NULL, " //
+                           + "CONSTRAINT fk_gtms_table_name FOREIGN KEY (table_name) REFERENCES gpkg_contents(table_name), " //
+                           + "CONSTRAINT fk_gtms_srs FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys (srs_id))");
+         statement.execute("CREATE TABLE IF NOT EXISTS gpkg_tile_matrix (" //
+                           + "table_name TEXT NOT NULL, " //
+                           + "zoom_level INTEGER NOT NULL, " //
+                           + "matrix_width INTEGER NOT NULL, " //
+                           + "matrix_height INTEGER NOT NULL, " //
+                           + "tile_width INTEGER NOT NULL, " //
+                           + "tile_height INTEGER NOT NULL, " //
+                           + "pixel_x_size DOUBLE NOT NULL, " //
+                           + "pixel_y_size DOUBLE NOT NULL, " //
+                           + "CONSTRAINT pk_ttm PRIMARY KEY (table_name, zoom_level), " //
+                           + "CONSTRAINT fk_tmm_table_name FOREIGN KEY (table_name) REFERENCES gpkg_contents(table_name))");
+         statement.execute("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" //
+                           + "id INTEGER PRIMARY KEY AUTOINCREMENT, " //
+                           + "zoom_level INTEGER NOT NULL, " //
+                           + "tile_column INTEGER NOT NULL, " //
+                           + "tile_row INTEGER NOT NULL, " //
+                           + "tile_data BLOB NOT NULL, " //
+                           + "UNIQUE (zoom_level, tile_column, tile_row))");
+      }
+
+      try (final PreparedStatement insert = getConnection().prepareStatement(
+               "INSERT OR REPLACE INTO gpkg_spatial_ref_sys "
+                        + "(srs_name, srs_id, organization, organization_coordsys_id, definition, description) "
+                        + "VALUES (?, ?, ?, ?, ?, ?)")) {
+         // the records required by the specification
+         addSpatialRefSys(insert, "Undefined cartesian SRS", -1, "NONE", -1, "undefined");
+         addSpatialRefSys(insert, "Undefined geographic SRS", 0, "NONE", 0, "undefined");
+         addSpatialRefSys(insert, "WGS 84", 4326, "EPSG", 4326, CRS.decode("EPSG:4326").toWKT());
+         if (srsId != 4326) {
+            final String name = CRS.decode("EPSG:" + srsId).getName().getCode();
+            addSpatialRefSys(insert, name, srsId, "EPSG", srsId, CRS.decode("EPSG:" + srsId).toWKT());
+         }
+         insert.executeBatch();
+      }
+
+      final String name = getFile().getName().replaceFirst("\\.gpkg$", "");
+      try (final PreparedStatement insert = getConnection().prepareStatement(
+               "INSERT OR REPLACE INTO gpkg_contents "
+                        + "(table_name, data_type, identifier, description, min_x, min_y, max_x, max_y, srs_id) "
+                        + "VALUES (?, 'tiles', ?, ?, ?, ?, ?, ?, ?)")) {
+         insert.setString(1, TABLE_NAME);
+         insert.setString(2, name);
+         insert.setString(3, name + " (" + _format + ")");
+         setBounds(insert, 4, bounds);
+         insert.setInt(8, srsId);
+         insert.executeUpdate();
+      }
+
+      try (final PreparedStatement insert = getConnection().prepareStatement(
+               "INSERT OR REPLACE INTO gpkg_tile_matrix_set (table_name, srs_id, min_x, min_y, max_x, max_y) "
+                        + "VALUES (?, ?, ?, ?, ?, ?)")) {
+         insert.setString(1, TABLE_NAME);
+         insert.setInt(2, srsId);
+         setBounds(insert, 3, bounds);
+         insert.executeUpdate();
+      }
+   }
+
+
+   private static void addSpatialRefSys(final PreparedStatement insert,
+                                        final String name,
+                                        final int id,
+                                        final String organization,
+                                        final int organizationId,
+                                        final String definition) throws SQLException {
+      insert.setString(1, name);
+      insert.setInt(2, id);
+      insert.setString(3, organization);
+      insert.setInt(4, organizationId);
+      insert.setString(5, definition);
+      insert.setString(6, null);
+      insert.addBatch();
+   }
+
+
+   private static void setBounds(final PreparedStatement insert,
+                                 final int firstIndex,
+                                 final double[] bounds) throws SQLException {
+      for (int i = 0; i < 4; i++) {
+         insert.setDouble(firstIndex + i, bounds[i]);
+      }
+   }
+
+
+   @Override
+   protected String getInsertSQL() {
+      return "INSERT OR REPLACE INTO " + TABLE_NAME + " (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)";
+   }
+
+
+   @Override
+   protected String getCopySQL() {
+      return "INSERT OR REPLACE INTO " + TABLE_NAME + " (zoom_level, tile_column, tile_row, tile_data) "
+             + "SELECT ?, ?, ?, tile_data FROM " + TABLE_NAME + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+   }
+
+
+   @Override
+   protected String getSelectSQL() {
+      return "SELECT tile_data FROM " + TABLE_NAME + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+   }
+
+
+   @Override
+   protected int toStoredRow(final int level,
+                             final int row) {
+      return row;
+   }
+
+
+   /**
+    * Writes a tile matrix for every level in the tiles table, including the ones written by previous runs.
+    */
+   @Override
+   protected void finish() throws SQLException {
+      final double[] bounds = _pyramid.getProjectedBounds();
+      final double width = bounds[2] - bounds[0];
+      final double height = bounds[3] - bounds[1];
+      final int tileWidth = _pyramid.getTileImageWidth();
+      final int tileHeight = _pyramid.getTileImageHeight();
+
+      try (final Statement statement = getConnection().createStatement();
+           final PreparedStatement insert = getConnection().prepareStatement(
+                    "INSERT OR REPLACE INTO gpkg_tile_matrix "
+                             + "(table_name, zoom_level, matrix_width, matrix_height, tile_width, tile_height, pixel_x_size, pixel_y_size) "
+                             + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+           final ResultSet levels = statement.executeQuery("SELECT DISTINCT zoom_level FROM " + TABLE_NAME)) {
+         while (levels.next()) {
+            final int level = levels.getInt(1);
+            final int matrixWidth = _pyramid.getNumberOfColumns(level);
+            final int matrixHeight = _pyramid.getNumberOfRows(level);
+
+            insert.setString(1, TABLE_NAME);
+            insert.setInt(2, level);
+            insert.setInt(3, matrixWidth);
+            insert.setInt(4, matrixHeight);
+            insert.setInt(5, tileWidth);
+            insert.setInt(6, tileHeight);
+            insert.setDouble(7, width / ((double) matrixWidth * tileWidth));
+            insert.setDouble(8, height / ((double) matrixHeight * tileHeight));
+            insert.addBatch();
+         }
+         insert.executeBatch();
+      }
+   }
+
+
+   @Override
+   public String toString() {
+      return "[GeoPackageTileSink " + getFile() + "]";
+   }
+
+}
@@ -0,0 +1,138 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.glob3mobile.tools.tiling.pyramid.Pyramid;
+import com.glob3mobile.tools.tiling.pyramid.WebMercatorPyramid;
+
+
+/**
+ * Writes the tiles into an MBTiles file, committing a transaction every TILES_PER_TRANSACTION tiles (or when the queue
+ * has been idle for a while).
+ * <p>
+ * The rows are flipped to the TMS convention (row 0 at the south) of the MBTiles specification, which only defines the
+ * Web Mercator tiles, so any other pyramid is rejected.
+ */
+public class MBTilesTileSink
+   extends
+      SQLiteTileSink {
+
+   private static final int TILES_PER_TRANSACTION = 8192;
+
+   private final Pyramid    _pyramid;
+   private final String     _format;
+
+
+   /**
+    * @param format
+    *           the format of the tiles data, "png" or "jpg"
+    * @throws IOException
+    *            if the pyramid isn't a WebMercatorPyramid (before creating the file)
+    */
+   public MBTilesTileSink(final File file,
+                          final Pyramid pyramid,
+                          final String format) throws IOException {
+      super(checkPyramid(file, pyramid), TILES_PER_TRANSACTION, false);
+      _pyramid = pyramid;
+      _format = format;
+      try (final Statement statement = getConnection().createStatement()) {
+         statement.execute("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+         statement.execute("CREATE TABLE IF NOT EXISTS tiles "
+                           + "(zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+         statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+      }
+      catch (final SQLException e) {
+         closeQuietly(getConnection());
+         throw new IOException("Can't initialize \"" + file.getAbsolutePath() + "\"", e);
+      }
+      start();
+   }
+
+
+   private static File checkPyramid(final File file,
+                                    final Pyramid pyramid) throws IOException {
+      if (!(pyramid instanceof WebMercatorPyramid)) {
+         throw new IOException("Can't write \"" + file.getAbsolutePath() + "\": MBTiles only supports the Web Mercator tiles, "
+                               + "not " + pyramid.getClass().getSimpleName() + " (use the GEOPACKAGE output format instead)");
+      }
+      return file;
+   }
+
+
+   @Override
+   protected String getInsertSQL() {
+      return "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)";
+   }
+
+
+   @Override
+   protected String getCopySQL() {
+      return "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) "
+             + "SELECT ?, ?, ?, tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+   }
+
+
+   @Override
+   protected String getSelectSQL() {
+      return "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+   }
+
+
+   @Override
+   protected int toStoredRow(final int level,
+                             final int row) {
+      return _pyramid.getNumberOfRows(level) - row - 1;
+   }
+
+
+   @Override
+   protected void finish() throws SQLException {
+      final String name = getFile().getName().replaceFirst("\\.mbtiles$", "");
+      try (final Statement statement = getConnection().createStatement();
+           final PreparedStatement insert = getConnection().prepareStatement("INSERT INTO metadata (name, value) VALUES (?, ?)")) {
+         // the zoom levels of a resumed file include the ones written by the previous runs
+         int minLevel = getMinLevel();
+         int maxLevel = getMaxLevel();
+         try (final ResultSet result = statement.executeQuery("SELECT MIN(zoom_level), MAX(zoom_level) FROM tiles")) {
+            if (result.next() && (result.getObject(1) != null)) {
+               minLevel = Math.min(minLevel, result.getInt(1));
+               maxLevel = Math.max(maxLevel, result.getInt(2));
+            }
+         }
+         statement.execute("DELETE FROM metadata");
+         addMetadata(insert, "name", name);
+         addMetadata(insert, "type", "baselayer");
+         addMetadata(insert, "version", "1.0");
+         addMetadata(insert, "description", name);
+         addMetadata(insert, "format", _format);
+         if (minLevel <= maxLevel) {
+            addMetadata(insert, "minzoom", Integer.toString(minLevel));
+            addMetadata(insert, "maxzoom", Integer.toString(maxLevel));
+         }
+         insert.executeBatch();
+      }
+   }
+
+
+   private static void addMetadata(final PreparedStatement insert,
+                                   final String name,
+                                   final String value) throws SQLException {
+      insert.setString(1, name);
+      insert.setString(2, value);
+      insert.addBatch();
+   }
+
+
+   @Override
+   public String toString() {
+      return "[MBTilesTileSink " + getFile() + "]";
+   }
+
+}
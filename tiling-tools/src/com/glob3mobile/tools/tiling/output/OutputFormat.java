@@ -0,0 +1,76 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.glob3mobile.tools.tiling.pyramid.Pyramid;
+import com.glob3mobile.utils.IOUtils;
+
+
+/**
+ * Where the Tiler and the TilesMixer store the tiles of an output directory.
+ */
+public enum OutputFormat {
+   /**
+    * One file per tile, &lt;level&gt;/&lt;column&gt;/&lt;row&gt;.&lt;imageFormat&gt;.
+    */
+   DIRECTORY {
+      @Override
+      public TileSink createSink(final File directory,
+                                 final Pyramid pyramid,
+                                 final String imageFormat) throws IOException {
+         return new DirectoryTileSink(directory, imageFormat);
+      }
+   },
+
+   /**
+    * A single tiles.mbtiles file, only for the WebMercatorPyramid (use GEOPACKAGE for the other pyramids).
+    */
+   MBTILES {
+      @Override
+      public TileSink createSink(final File directory,
+                                 final Pyramid pyramid,
+                                 final String imageFormat) throws IOException {
+         IOUtils.ensureDirectory(directory);
+         return new MBTilesTileSink(new File(directory, "tiles.mbtiles"), pyramid, imageFormat);
+      }
+   },
+
+   /**
+    * A single tiles.gpkg GeoPackage file, with the tile matrix set of the pyramid.
+    */
+   GEOPACKAGE {
+      @Override
+      public TileSink createSink(final File directory,
+                                 final Pyramid pyramid,
+                                 final String imageFormat) throws IOException {
+         IOUtils.ensureDirectory(directory);
+         return new GeoPackageTileSink(new File(directory, "tiles.gpkg"), pyramid, imageFormat);
+      }
+   },
+
+   /**
+    * A single tiles.archive file, read by TileArchive.
+    */
+   ARCHIVE {
+      @Override
+      public TileSink createSink(final File directory,
+                                 final Pyramid pyramid,
+                                 final String imageFormat) throws IOException {
+         IOUtils.ensureDirectory(directory);
+         return new ArchiveTileSink(new File(directory, "tiles.archive"), imageFormat);
+      }
+   };
+
+
+   /**
+    * @param imageFormat
+    *           the format of the encoded tiles, "png" or "jpg"
+    */
+   public abstract TileSink createSink(File directory,
+                                       Pyramid pyramid,
+                                       String imageFormat) throws IOException;
+
+}
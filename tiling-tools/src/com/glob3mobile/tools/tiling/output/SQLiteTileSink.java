@@ -0,0 +1,426 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.glob3mobile.utils.Logger;
+
+
+/**
+ * Base of the sinks writing the tiles into a table of an SQLite file. The encoding threads only enqueue the tiles; a
+ * single writer thread inserts them with batched prepared statements, in large transactions, so the throughput doesn't
+ * depend on the filesystem metadata operations.
+ * <p>
+ * Subclasses create their schema in their constructor (with getConnection()) and then call start().
+ */
+public abstract class SQLiteTileSink
+   implements
+      TileSink {
+
+   private static final int   QUEUE_CAPACITY  = 1024;
+   private static final int   TILES_PER_BATCH = 256;
+   private static final long  IDLE_COMMIT_MS  = 1000;
+
+   private static final Entry END             = new Entry(-1, -1, -1, null, null);
+
+
+   private static class Entry {
+      private final int      _level;
+      private final int      _column;
+      private final int      _row;
+      private final byte[]   _data;
+      private final Callback _callback;
+      private final int      _sourceLevel;
+      private final int      _sourceColumn;
+      private final int      _sourceRow;
+
+
+      private Entry(final int level,
+                    final int column,
+                    final int row,
+                    final byte[] data,
+                    final Callback callback) {
+         this(level, column, row, data, callback, -1, -1, -1);
+      }
+
+
+      /**
+       * The source is only given for the copies, which have no data.
+       */
+      private Entry(final int level,
+                    final int column,
+                    final int row,
+                    final byte[] data,
+                    final Callback callback,
+                    final int sourceLevel,
+                    final int sourceColumn,
+                    final int sourceRow) {
+         _level = level;
+         _column = column;
+         _row = row;
+         _data = data;
+         _callback = callback;
+         _sourceLevel = sourceLevel;
+         _sourceColumn = sourceColumn;
+         _sourceRow = sourceRow;
+      }
+   }
+
+
+   private final File                 _file;
+   private final int                  _tilesPerTransaction;
+   private final boolean              _commitPerLevel;
+   private final Connection           _connection;
+   private final BlockingQueue<Entry> _queue      = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+   private Thread                     _writer;
+   private volatile Throwable         _failure    = null;
+   private int                        _minLevel   = Integer.MAX_VALUE;
+   private int                        _maxLevel   = Integer.MIN_VALUE;
+   private long                       _tilesCount = 0;
+   private Connection                 _readConnection;
+   private boolean                    _closed     = false;
+
+
+   /**
+    * @param tilesPerTransaction
+    *           the transaction is committed once it holds that many tiles
+    * @param commitPerLevel
+    *           if true the transaction is also committed when the level of the tiles changes, and not when the queue is
+    *           idle
+    */
+   protected SQLiteTileSink(final File file,
+                            final int tilesPerTransaction,
+                            final boolean commitPerLevel) throws IOException {
+      _file = file;
+      _tilesPerTransaction = tilesPerTransaction;
+      _commitPerLevel = commitPerLevel;
+      _connection = openConnection(file);
+      try (final Statement statement = _connection.createStatement()) {
+         // the WAL survives the crash of the process, and only the checkpoints are synced
+         statement.execute("PRAGMA journal_mode=WAL");
+         statement.execute("PRAGMA synchronous=NORMAL");
+      }
+      catch (final SQLException e) {
+         closeQuietly(_connection);
+         throw new IOException("Can't initialize \"" + file.getAbsolutePath() + "\"", e);
+      }
+   }
+
+
+   private static Connection openConnection(final File file) throws IOException {
+      try {
+         Class.forName("org.sqlite.JDBC");
+         return DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+      }
+      catch (final ClassNotFoundException | SQLException e) {
+         throw new IOException("Can't open \"" + file.getAbsolutePath() + "\"", e);
+      }
+   }
+
+
+   protected static void closeQuietly(final Connection connection) {
+      try {
+         connection.close();
+      }
+      catch (final SQLException e) {
+         // nothing to do, already failing
+      }
+   }
+
+
+   protected File getFile() {
+      return _file;
+   }
+
+
+   /**
+    * The connection of the writer, only to be used before start() and from finish().
+    */
+   protected Connection getConnection() {
+      return _connection;
+   }
+
+
+   /**
+    * Lowest level written by this sink (not by previous runs), Integer.MAX_VALUE if none.
+    */
+   protected int getMinLevel() {
+      return _minLevel;
+   }
+
+
+   /**
+    * Highest level written by this sink (not by previous runs), Integer.MIN_VALUE if none.
+    */
+   protected int getMaxLevel() {
+      return _maxLevel;
+   }
+
+
+   /**
+    * Starts the writer thread, the schema has to be already created.
+    */
+   protected void start() throws IOException {
+      try {
+         _connection.setAutoCommit(false);
+      }
+      catch (final SQLException e) {
+         closeQuietly(_connection);
+         throw new IOException("Can't initialize \"" + _file.getAbsolutePath() + "\"", e);
+      }
+      _writer = new Thread(this::runWriter, getClass().getSimpleName() + "-writer");
+      _writer.setDaemon(true);
+      _writer.start();
+   }
+
+
+   /**
+    * Statement inserting (or replacing) a tile, with the parameters level, column, row and data.
+    */
+   protected abstract String getInsertSQL();
+
+
+   /**
+    * Statement copying the data of a tile, with the parameters level, column and row of the copy, and level, column and
+    * row of the source.
+    */
+   protected abstract String getCopySQL();
+
+
+   /**
+    * Statement selecting the data of a tile, with the parameters level, column and row.
+    */
+   protected abstract String getSelectSQL();
+
+
+   /**
+    * Converts the row (row 0 at the north) to the convention of the table.
+    */
+   protected abstract int toStoredRow(int level,
+                                      int row);
+
+
+   /**
+    * Called on close, after every tile was committed, to write the metadata. The caller commits.
+    */
+   protected abstract void finish() throws SQLException;
+
+
+   @Override
+   public void write(final int level,
+                     final int column,
+                     final int row,
+                     final byte[] data,
+                     final Callback callback) throws IOException {
+      enqueue(new Entry(level, column, toStoredRow(level, row), data, callback));
+   }
+
+
+   /**
+    * The copy is inserted by the writer thread after the source, in the same order they were enqueued. The data is
+    * copied inside the database, it isn't encoded again.
+    */
+   @Override
+   public void writeCopy(final int level,
+                         final int column,
+                         final int row,
+                         final int sourceLevel,
+                         final int sourceColumn,
+                         final int sourceRow,
+                         final Callback callback) throws IOException {
+      enqueue(new Entry(level, column, toStoredRow(level, row), null, callback, sourceLevel, sourceColumn, toStoredRow(
+               sourceLevel, sourceRow)));
+   }
+
+
+   private void enqueue(final Entry entry) throws IOException {
+      try {
+         // the writer could die with the queue full
+         while (!_queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+         }
+      }
+      catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while writing to \"" + _file.getAbsolutePath() + "\"", e);
+      }
+      checkFailure();
+   }
+
+
+   private void checkFailure() throws IOException {
+      final Throwable failure = _failure;
+      if (failure != null) {
+         throw new IOException("Can't write to \"" + _file.getAbsolutePath() + "\"", failure);
+      }
+   }
+
+
+   private void runWriter() {
+      // only the callbacks are retained until the commit, the data is released once batched
+      final List<Callback> callbacks = new ArrayList<Callback>();
+      try (final PreparedStatement insert = _connection.prepareStatement(getInsertSQL());
+           final PreparedStatement copy = _connection.prepareStatement(getCopySQL())) {
+         int batched = 0;
+         int uncommitted = 0;
+         int transactionLevel = -1;
+         while (true) {
+            final Entry entry = _commitPerLevel ? _queue.take() : _queue.poll(IDLE_COMMIT_MS, TimeUnit.MILLISECONDS);
+            final boolean levelChanged = _commitPerLevel && (entry != null) && (uncommitted > 0)
+                                         && (transactionLevel != entry._level);
+            if ((entry == null) || (entry == END) || levelChanged) {
+               if (batched > 0) {
+                  insert.executeBatch();
+                  batched = 0;
+               }
+               commit(uncommitted, callbacks);
+               uncommitted = 0;
+               if (entry == null) {
+                  continue;
+               }
+               if (entry == END) {
+                  return;
+               }
+            }
+
+            if (entry._data == null) {
+               // the source could be still batched
+               if (batched > 0) {
+                  insert.executeBatch();
+                  batched = 0;
+               }
+               copy.setInt(1, entry._level);
+               copy.setInt(2, entry._column);
+               copy.setInt(3, entry._row);
+               copy.setInt(4, entry._sourceLevel);
+               copy.setInt(5, entry._sourceColumn);
+               copy.setInt(6, entry._sourceRow);
+               copy.executeUpdate();
+            }
+            else {
+               insert.setInt(1, entry._level);
+               insert.setInt(2, entry._column);
+               insert.setInt(3, entry._row);
+               insert.setBytes(4, entry._data);
+               insert.addBatch();
+               batched++;
+            }
+            uncommitted++;
+            transactionLevel = entry._level;
+            if (entry._callback != null) {
+               callbacks.add(entry._callback);
+            }
+            _minLevel = Math.min(_minLevel, entry._level);
+            _maxLevel = Math.max(_maxLevel, entry._level);
+
+            if (batched == TILES_PER_BATCH) {
+               insert.executeBatch();
+               batched = 0;
+            }
+            if (uncommitted >= _tilesPerTransaction) {
+               if (batched > 0) {
+                  insert.executeBatch();
+                  batched = 0;
+               }
+               commit(uncommitted, callbacks);
+               uncommitted = 0;
+            }
+         }
+      }
+      catch (final SQLException | IOException | InterruptedException | RuntimeException e) {
+         _failure = e;
+         _queue.clear();
+      }
+   }
+
+
+   private void commit(final int uncommitted,
+                       final List<Callback> callbacks) throws SQLException, IOException {
+      if (uncommitted == 0) {
+         return;
+      }
+      _connection.commit();
+      _tilesCount += uncommitted;
+      for (final Callback callback : callbacks) {
+         callback.stored();
+      }
+      callbacks.clear();
+   }
+
+
+   @Override
+   public synchronized byte[] read(final int level,
+                                   final int column,
+                                   final int row) throws IOException {
+      try {
+         if (_readConnection == null) {
+            _readConnection = openConnection(_file);
+         }
+         try (final PreparedStatement select = _readConnection.prepareStatement(getSelectSQL())) {
+            select.setInt(1, level);
+            select.setInt(2, column);
+            select.setInt(3, toStoredRow(level, row));
+            try (final ResultSet result = select.executeQuery()) {
+               return result.next() ? result.getBytes(1) : null;
+            }
+         }
+      }
+      catch (final SQLException e) {
+         throw new IOException("Can't read from \"" + _file.getAbsolutePath() + "\"", e);
+      }
+   }
+
+
+   @Override
+   public synchronized void close() throws IOException {
+      if (_closed) {
+         return;
+      }
+      _closed = true;
+
+      try {
+         while (!_queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+            if (!_writer.isAlive()) {
+               break;
+            }
+         }
+         _writer.join();
+      }
+      catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while closing \"" + _file.getAbsolutePath() + "\"", e);
+      }
+
+      try {
+         checkFailure();
+         try {
+            finish();
+            _connection.commit();
+         }
+         catch (final SQLException e) {
+            throw new IOException("Can't write the metadata of \"" + _file.getAbsolutePath() + "\"", e);
+         }
+         Logger.log("Written " + _tilesCount + " tiles to \"" + _file.getAbsolutePath() + "\"");
+      }
+      finally {
+         closeQuietly(_connection);
+         if (_readConnection != null) {
+            closeQuietly(_readConnection);
+         }
+      }
+   }
+
+}
@@ -0,0 +1,227 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Reader of the single file tiles archives written by ArchiveTileSink. Layout:
+ * <ul>
+ * <li>header: int magic, int version, long offset of the index (0 while the first run writing it is in progress)</li>
+ * <li>the tiles data, appended back to back</li>
+ * <li>index: int format length, format (UTF-8), int entries count, int largest tile length, and one entry (int level, int
+ * column, int row, long offset, int length) per tile, sorted by level, column and row</li>
+ * </ul>
+ * Rows follow the tiles files convention (row 0 at the north).
+ * <p>
+ * The archive is memory mapped, so a lookup is a binary search on the mapped index, without any system call, and the
+ * tiles are answered as read-only slices of the mapped data, without copying.
+ */
+public class TileArchive
+   implements
+      Closeable {
+
+   public static final int  MAGIC        = 0x47334D41; // "G3MA"
+   public static final int  VERSION      = 1;
+
+   static final int         HEADER_SIZE  = 16;
+   static final int         ENTRY_SIZE   = 24;
+
+   /**
+    * The data is mapped in segments of this size (a MappedByteBuffer can't reach 2GB), each one extended by the largest
+    * tile length so no tile straddles two segments.
+    */
+   private static final long SEGMENT_SIZE = 1L << 30;
+
+   /**
+    * The index entries are mapped in chunks of this count, so no entry straddles two chunks.
+    */
+   private static final int  ENTRIES_PER_CHUNK = (1 << 30) / ENTRY_SIZE;
+
+
+   /**
+    * Answers true if the coordinates of the tile can be stored in an archive.
+    */
+   static boolean isInRange(final int level,
+                            final int column,
+                            final int row) {
+      return (level >= 0) && (level <= 127) && (column >= 0) && (column < (1 << 28)) && (row >= 0) && (row < (1 << 28));
+   }
+
+
+   /**
+    * Packs the coordinates of a tile in a key, ordered by level, column and row.
+    */
+   static long toKey(final int level,
+                     final int column,
+                     final int row) {
+      if (!isInRange(level, column, row)) {
+         throw new IllegalArgumentException("Tile out of the archive range: level=" + level + ", column=" + column + ", row="
+                                            + row);
+      }
+      return ((long) level << 56) | ((long) column << 28) | row;
+   }
+
+
+   public static TileArchive open(final File file) throws IOException {
+      final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+         return new TileArchive(file, channel);
+      }
+      catch (final IOException | RuntimeException e) {
+         channel.close();
+         throw e;
+      }
+   }
+
+
+   private final File         _file;
+   private final FileChannel  _channel;
+   private final String       _format;
+   private final int          _entriesCount;
+   private final ByteBuffer[] _entryChunks;
+   private final ByteBuffer[] _segments;
+
+
+   private TileArchive(final File file,
+                       final FileChannel channel) throws IOException {
+      _file = file;
+      _channel = channel;
+
+      final long size = channel.size();
+      if (size < HEADER_SIZE) {
+         throw new IOException("Invalid archive \"" + file.getAbsolutePath() + "\"");
+      }
+      final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      final long indexOffset = header.getLong(8);
+      if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION) || (indexOffset < HEADER_SIZE)
+          || (indexOffset > size)) {
+         throw new IOException("Invalid or unfinished archive \"" + file.getAbsolutePath() + "\"");
+      }
+
+      if ((size - indexOffset) < 4) {
+         throw new IOException("Truncated archive \"" + file.getAbsolutePath() + "\"");
+      }
+      final int formatLength = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 4).getInt();
+      final long entriesOffset = indexOffset + 4 + formatLength + 8;
+      if ((formatLength < 0) || (entriesOffset > size)) {
+         throw new IOException("Truncated archive \"" + file.getAbsolutePath() + "\"");
+      }
+      final ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset + 4, formatLength + 8);
+      final byte[] format = new byte[formatLength];
+      index.get(format);
+      _format = new String(format, StandardCharsets.UTF_8);
+      _entriesCount = index.getInt();
+      final int largestTileLength = index.getInt();
+      if ((_entriesCount < 0) || (((long) _entriesCount * ENTRY_SIZE) > (size - entriesOffset))) {
+         throw new IOException("Truncated archive \"" + file.getAbsolutePath() + "\"");
+      }
+
+      // the index can exceed the 2GB of a MappedByteBuffer (about 89M tiles)
+      final int chunksCount = (_entriesCount + ENTRIES_PER_CHUNK - 1) / ENTRIES_PER_CHUNK;
+      _entryChunks = new ByteBuffer[chunksCount];
+      for (int i = 0; i < chunksCount; i++) {
+         final long firstEntry = (long) i * ENTRIES_PER_CHUNK;
+         final long chunkSize = Math.min(ENTRIES_PER_CHUNK, _entriesCount - firstEntry) * ENTRY_SIZE;
+         _entryChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, entriesOffset + (firstEntry * ENTRY_SIZE), chunkSize);
+      }
+
+      final int segmentsCount = (int) ((indexOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      _segments = new ByteBuffer[segmentsCount];
+      for (int i = 0; i < segmentsCount; i++) {
+         final long start = i * SEGMENT_SIZE;
+         final long end = Math.min(start + SEGMENT_SIZE + largestTileLength, indexOffset);
+         _segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      }
+   }
+
+
+   /**
+    * Answers the format of the tiles data, "png" or "jpg".
+    */
+   public String getFormat() {
+      return _format;
+   }
+
+
+   public int getTilesCount() {
+      return _entriesCount;
+   }
+
+
+   /**
+    * Answers the encoded tile as a read-only slice of the mapped archive, or null if the archive has no such tile. The
+    * slice is only valid while the archive is open.
+    */
+   public ByteBuffer getTile(final int level,
+                             final int column,
+                             final int row) {
+      if (!isInRange(level, column, row)) {
+         return null;
+      }
+      final long key = toKey(level, column, row);
+
+      int low = 0;
+      int high = _entriesCount - 1;
+      while (low <= high) {
+         final int middle = (low + high) >>> 1;
+         final ByteBuffer entries = _entryChunks[middle / ENTRIES_PER_CHUNK];
+         final int position = (middle % ENTRIES_PER_CHUNK) * ENTRY_SIZE;
+         final long middleKey = toKey(entries.getInt(position), entries.getInt(position + 4), entries.getInt(position + 8));
+         if (middleKey < key) {
+            low = middle + 1;
+         }
+         else if (middleKey > key) {
+            high = middle - 1;
+         }
+         else {
+            final long offset = entries.getLong(position + 12);
+            final int length = entries.getInt(position + 20);
+            final ByteBuffer segment = _segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+            final int start = (int) (offset % SEGMENT_SIZE);
+            segment.limit(start + length);
+            segment.position(start);
+            return segment.slice();
+         }
+      }
+      return null;
+   }
+
+
+   /**
+    * Answers a copy of the encoded tile, or null if the archive has no such tile.
+    */
+   public byte[] getTileBytes(final int level,
+                              final int column,
+                              final int row) {
+      final ByteBuffer tile = getTile(level, column, row);
+      if (tile == null) {
+         return null;
+      }
+      final byte[] result = new byte[tile.remaining()];
+      tile.get(result);
+      return result;
+   }
+
+
+   @Override
+   public void close() throws IOException {
+      // the mappings are released by the garbage collector
+      _channel.close();
+   }
+
+
+   @Override
+   public String toString() {
+      return "[TileArchive " + _file + ", format=" + _format + ", tiles=" + _entriesCount + "]";
+   }
+
+}
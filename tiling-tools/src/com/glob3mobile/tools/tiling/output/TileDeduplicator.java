@@ -0,0 +1,143 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.glob3mobile.utils.ImageUtils;
+
+
+/**
+ * Replaces the tiles whose pixels are identical to an already stored tile (the ocean and nodata tiles of the merged
+ * pyramids) by a copy (TileSink.writeCopy()), so they are neither encoded nor stored again.
+ * <p>
+ * The digests of the pixels of the last stored tiles are kept in a LRU of the given capacity, the frequently repeated
+ * tiles stay in it. A tile is only registered once its write() returned, so identical tiles written at the same time by
+ * different threads are both encoded, but nobody waits for anybody.
+ */
+public class TileDeduplicator {
+
+   public static TileDeduplicator createDefault() {
+      final int capacity = 4096;
+      return new TileDeduplicator(capacity);
+   }
+
+
+   public interface Encoder {
+      byte[] encode(BufferedImage image) throws IOException;
+   }
+
+
+   /**
+    * The coordinates of a stored tile.
+    */
+   public static class Original {
+      public final int _level;
+      public final int _column;
+      public final int _row;
+
+
+      private Original(final int level,
+                       final int column,
+                       final int row) {
+         _level = level;
+         _column = column;
+         _row = row;
+      }
+   }
+
+
+   private final Map<ByteBuffer, Original> _originals;
+   private final AtomicLong                _copiesCount = new AtomicLong();
+
+
+   public TileDeduplicator(final int capacity) {
+      _originals = new LinkedHashMap<ByteBuffer, Original>(capacity, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+
+         @Override
+         protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Original> eldest) {
+            return size() > capacity;
+         }
+      };
+   }
+
+
+   public static ByteBuffer digest(final BufferedImage image) {
+      return ByteBuffer.wrap(ImageUtils.digestPixels(image));
+   }
+
+
+   /**
+    * Answers the stored tile with the given digest, or null if there is no such tile (or it was forgotten).
+    */
+   public Original getOriginal(final ByteBuffer digest) {
+      synchronized (_originals) {
+         return _originals.get(digest);
+      }
+   }
+
+
+   /**
+    * Registers a tile whose write() returned.
+    */
+   public void stored(final ByteBuffer digest,
+                      final int level,
+                      final int column,
+                      final int row) {
+      synchronized (_originals) {
+         _originals.putIfAbsent(digest, new Original(level, column, row));
+      }
+   }
+
+
+   /**
+    * Writes a copy of the original tile.
+    */
+   public void writeCopy(final TileSink sink,
+                         final int level,
+                         final int column,
+                         final int row,
+                         final Original original,
+                         final TileSink.Callback callback) throws IOException {
+      sink.writeCopy(level, column, row, original._level, original._column, original._row, callback);
+      _copiesCount.incrementAndGet();
+   }
+
+
+   /**
+    * Writes the image, encoded with the given encoder, or a copy of an identical tile.
+    */
+   public void write(final TileSink sink,
+                     final int level,
+                     final int column,
+                     final int row,
+                     final BufferedImage image,
+                     final Encoder encoder,
+                     final TileSink.Callback callback) throws IOException {
+      final ByteBuffer digest = digest(image);
+      final Original original = getOriginal(digest);
+      if (original == null) {
+         sink.write(level, column, row, encoder.encode(image), callback);
+         stored(digest, level, column, row);
+      }
+      else {
+         writeCopy(sink, level, column, row, original, callback);
+      }
+   }
+
+
+   /**
+    * Answers the number of tiles written as copies.
+    */
+   public long getCopiesCount() {
+      return _copiesCount.get();
+   }
+
+}
@@ -0,0 +1,64 @@
+
+
+package com.glob3mobile.tools.tiling.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * Destination of the encoded tiles produced by the Tiler and the TilesMixer. Rows follow the tiles files convention (row
+ * 0 at the north), whatever the convention of the underlying storage. Implementations are safe to use from concurrent
+ * threads.
+ */
+public interface TileSink
+   extends
+      Closeable {
+
+   /**
+    * Notified once a tile is durably stored (the file is in place, the transaction is committed...).
+    */
+   public interface Callback {
+      void stored() throws IOException;
+   }
+
+
+   /**
+    * Stores the encoded tile, replacing any previous one. The storage can be deferred (and the callback, if any, called
+    * from another thread) until close() at the latest.
+    */
+   void write(int level,
+              int column,
+              int row,
+              byte[] data,
+              Callback callback) throws IOException;
+
+
+   /**
+    * Stores a copy of a tile of this sink (whose write() already returned), sharing its storage where possible. As with
+    * write(), the storage can be deferred until close() at the latest.
+    */
+   void writeCopy(int level,
+                  int column,
+                  int row,
+                  int sourceLevel,
+                  int sourceColumn,
+                  int sourceRow,
+                  Callback callback) throws IOException;
+
+
+   /**
+    * Answers the encoded tile stored by this or a previous run, or null if there is no such tile.
+    */
+   byte[] read(int level,
+               int column,
+               int row) throws IOException;
+
+
+   /**
+    * Stores every pending tile and releases the sink.
+    */
+   @Override
+   void close() throws IOException;
+
+}
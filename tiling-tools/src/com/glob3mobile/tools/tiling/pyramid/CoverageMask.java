@@ -0,0 +1,80 @@
+
+
+package com.glob3mobile.tools.tiling.pyramid;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.BitSet;
+
+
+/**
+ * The pixels of a tile covered by a fully opaque pixel of any of the images added to the mask, so anything drawn below
+ * those images is hidden where the mask is set.
+ * <p>
+ * The mask is computed from the already decoded rasters, a row at a time, and the images without alpha cover the whole
+ * tile without looking at their pixels.
+ */
+class CoverageMask {
+
+   private final int    _width;
+   private final int    _height;
+   private final BitSet _covered;
+   private int          _coveredCount = 0;
+
+
+   CoverageMask(final int width,
+                final int height) {
+      _width = width;
+      _height = height;
+      _covered = new BitSet(width * height);
+   }
+
+
+   /**
+    * Adds the fully opaque pixels of the image (a null image, not decodable, covers nothing).
+    */
+   void add(final BufferedImage image) {
+      if ((image == null) || isFull()) {
+         return;
+      }
+
+      final int width = Math.min(image.getWidth(), _width);
+      final int height = Math.min(image.getHeight(), _height);
+      if (!image.getColorModel().hasAlpha()) {
+         for (int y = 0; y < height; y++) {
+            _covered.set(y * _width, (y * _width) + width);
+         }
+         _coveredCount = _covered.cardinality();
+         return;
+      }
+
+      // the alpha raster is null for the indexed images, their alpha comes from the palette
+      final WritableRaster alphaRaster = image.getAlphaRaster();
+      final int opaque = (alphaRaster == null) ? 255 : (1 << alphaRaster.getSampleModel().getSampleSize(0)) - 1;
+      final int[] row = new int[width];
+      for (int y = 0; y < height; y++) {
+         if (alphaRaster == null) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+               row[x] >>>= 24;
+            }
+         }
+         else {
+            alphaRaster.getSamples(0, y, width, 1, 0, row);
+         }
+         final int offset = y * _width;
+         for (int x = 0; x < width; x++) {
+            if ((row[x] == opaque) && !_covered.get(offset + x)) {
+               _covered.set(offset + x);
+               _coveredCount++;
+            }
+         }
+      }
+   }
+
+
+   boolean isFull() {
+      return _coveredCount == (_width * _height);
+   }
+
+}
@@ -3,87 +3,62 @@
 package com.glob3mobile.tools.tiling.pyramid;
 
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
 
 import com.glob3mobile.geo.GEOSector;
+import com.glob3mobile.tools.tiling.output.TileDeduplicator;
+import com.glob3mobile.tools.tiling.output.TileDeduplicator.Original;
+import com.glob3mobile.tools.tiling.output.TileSink;
 import com.glob3mobile.utils.IOUtils;
+import com.glob3mobile.utils.Logger;
+import com.glob3mobile.utils.PipelineStage;
 import com.glob3mobile.utils.Progress;
+import com.glob3mobile.utils.Resampler;
 
 
 public class MergedPyramid {
 
 
+   /**
+    * A tile being merged, created by the walk of its level (TileBatches) and dropped once written.
+    */
    private class MergedTile {
-      private final MergedColumn            _column;
+      private final int                     _level;
+      private final int                     _column;
       private final int                     _row;
-      private final List<SourcePyramidTile> _sourceTiles = new ArrayList<>();
+      private final List<SourcePyramidTile> _sourceTiles;
 
 
-      private MergedTile(final MergedColumn column,
-                         final int row) {
+      private MergedTile(final int level,
+                         final int column,
+                         final int row,
+                         final List<SourcePyramidTile> sourceTiles) {
+         _level = level;
          _column = column;
          _row = row;
+         _sourceTiles = sourceTiles;
       }
 
 
-      private void addSourceTile(final SourcePyramidTile sourceTile) {
-         _sourceTiles.add(sourceTile);
-      }
-
-
-      private BufferedImage createImage(final List<File> sourceImageFiles) throws IOException {
-         if (sourceImageFiles.isEmpty()) {
-            return null;
-         }
-         else if (sourceImageFiles.size() == 1) {
-            return ImageIO.read(sourceImageFiles.get(0));
-         }
-         else {
-            BufferedImage image = null;
-            Graphics2D g2d = null;
-            for (final File sourceImageFile : sourceImageFiles) {
-
-               final BufferedImage sourceImage = ImageIO.read(sourceImageFile);
-               if (g2d == null) {
-                  image = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
-                  g2d = image.createGraphics();
-               }
-
-               g2d.drawImage(sourceImage, 0, 0, null);
-            }
-            if (g2d != null) {
-               g2d.dispose();
-            }
-
-            return image;
-         }
-      }
-
-
-      private String getRelativeFileName() {
-         return _column.getRelativeFileName() + "/" + _row + ".jpg";
-      }
-
-
-      private void process(final SourcePyramid[] sourcePyramids,
-                           final File outputDirectory,
-                           final Object mutex) throws IOException {
-         final File output = new File(outputDirectory, getRelativeFileName());
-
+      /**
+       * Sorts the source tiles in drawing order, by the max level of their pyramids.
+       */
+      private void sortSourceTiles() {
          Collections.sort( //
                   _sourceTiles, //
                   new Comparator<SourcePyramidTile>() {
@@ -93,363 +68,606 @@ public class MergedPyramid {
                         return Integer.compare(o1.getPyramidMaxLevel(), o2.getPyramidMaxLevel());
                      }
                   });
+      }
+
+
+      /**
+       * Answers the source tiles to be drawn: the ones below the topmost opaque tile (by the manifests of the source
+       * pyramids) are hidden, and don't need to be decoded.
+       */
+      private List<SourcePyramidTile> getVisibleSourceTiles() {
+         for (int i = _sourceTiles.size() - 1; i > 0; i--) {
+            if (_sourceTiles.get(i).isFullOpaque()) {
+               return _sourceTiles.subList(i, _sourceTiles.size());
+            }
+         }
+         return _sourceTiles;
+      }
+
 
+      /**
+       * Answers the ancestors to be drawn below the source tiles, sorted by the max level of their pyramids, or an empty
+       * list if the source tiles are enough.
+       *
+       * @param coverage
+       *           the coverage of the decoded source tiles, it tells if the ancestors would be hidden when the manifests
+       *           of the source pyramids don't tell it
+       */
+      private List<SourcePyramidTile> findAncestors(final SourcePyramid[] sourcePyramids,
+                                                    final CoverageMask coverage) {
          // all sourcePyramids contributed to the tile, just mix the images
          if (_sourceTiles.size() == sourcePyramids.length) {
-            mergeFromSourceTiles(output, mutex);
+            return Collections.emptyList();
          }
-         else {
-            final List<SourcePyramidTile> ancestors = new ArrayList<>();
-            for (final SourcePyramid sourcePyramid : sourcePyramids) {
-               if (!sourcePyramidContributed(sourcePyramid)) {
-                  final SourcePyramidTile ancestor = sourcePyramid.getBestAncestor(_column._level._level, _column._column, _row);
-                  if (ancestor != null) {
-                     ancestors.add(ancestor);
-                  }
-               }
+         // an opaque source tile hides the ancestors, no need to look at the pixels
+         for (final SourcePyramidTile sourceTile : _sourceTiles) {
+            if (sourceTile.isFullOpaque()) {
+               return Collections.emptyList();
             }
+         }
 
-            if (ancestors.isEmpty()) {
-               // no ancestors for this tile
-               mergeFromSourceTiles(output, mutex);
+         final List<SourcePyramidTile> ancestors = new ArrayList<>();
+         for (final SourcePyramid sourcePyramid : sourcePyramids) {
+            if (!sourcePyramidContributed(sourcePyramid)) {
+               final SourcePyramidTile ancestor = sourcePyramid.getBestAncestor(_level, _column, _row);
+               if (ancestor != null) {
+                  ancestors.add(ancestor);
+               }
             }
-            else if ((_sourceTiles.size() == 1) && isFullOpaque(ImageIO.read(_sourceTiles.get(0).getImageFile()))) {
-               mergeFromSourceTiles(output, mutex);
+         }
+
+         if (ancestors.isEmpty()) {
+            // no ancestors for this tile
+            return ancestors;
+         }
+         if (coverage.isFull()) {
+            // the source tiles hide the ancestors
+            return Collections.emptyList();
+         }
+
+         final Comparator<SourcePyramidTile> comparator = new Comparator<SourcePyramidTile>() {
+            @Override
+            public int compare(final SourcePyramidTile o1,
+                               final SourcePyramidTile o2) {
+               return Integer.compare(o1.getPyramidMaxLevel(), o2.getPyramidMaxLevel());
             }
-            else {
-               //               Logger.log("Found ancestors for " + _column._level._level + "/" + _column._column + "/" + _row);
-               //               for (final SourcePyramidTile ancestor : ancestors) {
-               //                  Logger.log("  Ancestor " + ancestor.getImageFile());
-               //               }
-
-               final Comparator<SourcePyramidTile> comparator = new Comparator<SourcePyramidTile>() {
-                  @Override
-                  public int compare(final SourcePyramidTile o1,
-                                     final SourcePyramidTile o2) {
-                     return Integer.compare(o1.getPyramidMaxLevel(), o2.getPyramidMaxLevel());
-                  }
-               };
-               Collections.sort(ancestors, comparator);
-               mergeFromSourceTilesAndAncestors(ancestors, output, mutex);
+         };
+         Collections.sort(ancestors, comparator);
+         return ancestors;
+      }
+
+
+      private boolean sourcePyramidContributed(final SourcePyramid sourcePyramid) {
+         for (final SourcePyramidTile sourceTile : _sourceTiles) {
+            if (sourceTile._column._level._pyramid == sourcePyramid) {
+               return true;
             }
          }
+         return false;
       }
+   }
 
 
-      private void mergeFromSourceTilesAndAncestors(final List<SourcePyramidTile> ancestors,
-                                                    final File output,
-                                                    final Object mutex) throws IOException {
-         //Logger.log("    Merging tile \"" + output.getAbsolutePath() + "\"");
-
+   /**
+    * A tile flowing through the stages of process(), each stage fills the fields needed by the next one and releases
+    * the ones it consumed.
+    */
+   private class TileJob {
+      private final MergedTile        _tile;
+      private List<BufferedImage>     _sourceImages;
+      private List<SourcePyramidTile> _ancestors;
+      private List<BufferedImage>     _ancestorImages;
+      private BufferedImage           _image;
+      private ByteBuffer              _digest;
+      private Original                _original;
+      private byte[]                  _data;
 
-         final List<BufferedImage> sourceImageFiles = _sourceTiles.stream().map(sourceTile -> {
-            try {
-               return ImageIO.read(sourceTile.getImageFile());
-            }
-            catch (final IOException e) {
-               throw new RuntimeException(e);
-            }
-         }).collect(Collectors.toList());
 
-         final BufferedImage firstImage = sourceImageFiles.get(0);
+      private TileJob(final MergedTile tile) {
+         _tile = tile;
+      }
 
-         final BufferedImage image = new BufferedImage(firstImage.getWidth(), firstImage.getHeight(),
-                  BufferedImage.TYPE_4BYTE_ABGR);
 
-         final Graphics2D g2d = image.createGraphics();
-         // g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-         g2d.setRenderingHints(getHQRenderingHints());
+      private int getLevel() {
+         return _tile._level;
+      }
 
-         final GEOSector tileSector = _pyramid.sectorFor(_column._level._level, _column._column, _row);
 
-         for (final SourcePyramidTile ancestor : ancestors) {
-            final BufferedImage ancestorImage = ImageIO.read(ancestor.getImageFile());
+      private int getColumn() {
+         return _tile._column;
+      }
 
-            final GEOSector ancestorSector = _pyramid.sectorFor( //
-                     ancestor._column._level._level, //
-                     ancestor._column._column, //
-                     ancestor._row);
 
-            final Point2D lowerUV = ancestorSector.getUVCoordinates(tileSector._lower);
-            final Point2D upperUV = ancestorSector.getUVCoordinates(tileSector._upper);
+      private int getRow() {
+         return _tile._row;
+      }
 
-            final int ancestorImageWidth = ancestorImage.getWidth();
-            final int ancestorImageHeight = ancestorImage.getHeight();
 
-            final int dx1 = 0;
-            final int dy1 = 0;
-            final int dx2 = _pyramid.getTileImageWidth();
-            final int dy2 = _pyramid.getTileImageHeight();
-            final int sx1 = (int) Math.round(lowerUV.getX() * ancestorImageWidth);
-            final int sy2 = (int) Math.round(lowerUV.getY() * ancestorImageHeight);
-            final int sx2 = (int) Math.round(upperUV.getX() * ancestorImageWidth);
-            final int sy1 = (int) Math.round(upperUV.getY() * ancestorImageHeight);
-            g2d.drawImage(ancestorImage, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null);
+      /**
+       * Read stage: decodes the source tiles front to back, stopping once the decoded ones cover every pixel (the tiles
+       * below are hidden), and then the same with the ancestors if the source tiles don't cover the tile, taking them from
+       * the cache (decoding the missing ones) and upsampling them.
+       */
+      private void read() throws IOException {
+         _tile.sortSourceTiles();
+         final List<SourcePyramidTile> visibleTiles = _tile.getVisibleSourceTiles();
+         final BufferedImage[] images = new BufferedImage[visibleTiles.size()];
+         final CoverageMask coverage = new CoverageMask(_pyramid.getTileImageWidth(), _pyramid.getTileImageHeight());
+         int first = images.length;
+         while ((first > 0) && !coverage.isFull()) {
+            first--;
+            images[first] = ImageIO.read(visibleTiles.get(first).getImageFile());
+            coverage.add(images[first]);
          }
-
-         for (final BufferedImage sourceImage : sourceImageFiles) {
-            g2d.drawImage(sourceImage, 0, 0, null);
+         _sourceImages = new ArrayList<>(Arrays.asList(images).subList(first, images.length));
+         _hiddenTilesCount.addAndGet(_tile._sourceTiles.size() - _sourceImages.size());
+
+         _ancestors = _tile.findAncestors(_sourcePyramids, coverage);
+
+         // an ancestor is only fetched while the tiles above it don't cover the tile, the hidden ones are never decoded
+         final List<BufferedImage> upsampledImages = new ArrayList<>(_ancestors.size());
+         for (int i = _ancestors.size() - 1; (i >= 0) && !coverage.isFull(); i--) {
+            final SourcePyramidTile ancestor = _ancestors.get(i);
+            final BufferedImage upsampledImage = upsample(ancestor, _ancestorsCache.get(ancestor));
+            upsampledImages.add(upsampledImage);
+            if (ancestor.isFullOpaque()) {
+               // an opaque ancestor (by the manifest of its pyramid) hides the ones below
+               break;
+            }
+            coverage.add(upsampledImage);
          }
+         _hiddenTilesCount.addAndGet(_ancestors.size() - upsampledImages.size());
 
-         g2d.dispose();
-
-         saveImage(output, image, mutex);
+         // in drawing order, back to front
+         Collections.reverse(upsampledImages);
+         _ancestorImages = upsampledImages;
       }
 
 
-      private RenderingHints getHQRenderingHints() {
-         final RenderingHints hints = new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-         hints.put(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
-         hints.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-         hints.put(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-         return hints;
+      /**
+       * Answers the part of the image of the ancestor covering the tile, upsampled to the size of the tile.
+       */
+      private BufferedImage upsample(final SourcePyramidTile ancestor,
+                                     final BufferedImage ancestorImage) {
+         final GEOSector tileSector = _pyramid.sectorFor(getLevel(), getColumn(), getRow());
+         final GEOSector ancestorSector = _pyramid.sectorFor( //
+                  ancestor._column._level._level, //
+                  ancestor._column._column, //
+                  ancestor._row);
+
+         final Point2D lowerUV = ancestorSector.getUVCoordinates(tileSector._lower);
+         final Point2D upperUV = ancestorSector.getUVCoordinates(tileSector._upper);
+
+         final int ancestorImageWidth = ancestorImage.getWidth();
+         final int ancestorImageHeight = ancestorImage.getHeight();
+
+         final double sx1 = lowerUV.getX() * ancestorImageWidth;
+         final double sy2 = lowerUV.getY() * ancestorImageHeight;
+         final double sx2 = upperUV.getX() * ancestorImageWidth;
+         final double sy1 = upperUV.getY() * ancestorImageHeight;
+         return _resampler.resample( //
+                  ancestorImage, //
+                  sx1, sy1, sx2 - sx1, sy2 - sy1, //
+                  _pyramid.getTileImageWidth(), _pyramid.getTileImageHeight());
       }
 
 
-      private void mergeFromSourceTiles(final File output,
-                                        final Object mutex) throws IOException {
-         //Logger.log("    Merging tile \"" + output.getAbsolutePath() + "\"");
-
-         final List<File> sourceImageFiles = //
-         _sourceTiles.stream() //
-         .map(sourceTile -> sourceTile.getImageFile()) //
-         .collect(Collectors.toList());
+      /**
+       * Compose stage: draws the upsampled ancestors and the source tiles into the RGB image of the tile.
+       */
+      private void compose() {
+         final BufferedImage image = _ancestors.isEmpty() ? mergeSourceImages() : mergeSourceAndAncestorsImages();
+         _sourceImages = null;
+         _ancestorImages = null;
 
-         saveImage(output, createImage(sourceImageFiles), mutex);
+         _image = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+         final Graphics2D g2d = _image.createGraphics();
+         g2d.drawImage(image, 0, 0, null);
+         g2d.dispose();
       }
 
 
-      private boolean sourcePyramidContributed(final SourcePyramid sourcePyramid) {
-         for (final SourcePyramidTile sourceTile : _sourceTiles) {
-            if (sourceTile._column._level._pyramid == sourcePyramid) {
-               return true;
-            }
+      private BufferedImage mergeSourceImages() {
+         if (_sourceImages.size() == 1) {
+            return _sourceImages.get(0);
          }
-         return false;
+
+         final BufferedImage firstImage = _sourceImages.get(0);
+         final BufferedImage image = new BufferedImage(firstImage.getWidth(), firstImage.getHeight(),
+                  BufferedImage.TYPE_4BYTE_ABGR);
+         final Graphics2D g2d = image.createGraphics();
+         for (final BufferedImage sourceImage : _sourceImages) {
+            g2d.drawImage(sourceImage, 0, 0, null);
+         }
+         g2d.dispose();
+         return image;
       }
-   }
 
 
-   private class MergedColumn {
-      private final MergedLevel              _level;
-      private final int                      _column;
-      private final Map<Integer, MergedTile> _tiles = new HashMap<>();
+      private BufferedImage mergeSourceAndAncestorsImages() {
+         final BufferedImage firstImage = _sourceImages.get(0);
 
+         final BufferedImage image = new BufferedImage(firstImage.getWidth(), firstImage.getHeight(),
+                  BufferedImage.TYPE_4BYTE_ABGR);
 
-      MergedColumn(final MergedLevel level,
-                   final int column) {
-         _level = level;
-         _column = column;
-      }
+         final Graphics2D g2d = image.createGraphics();
 
+         for (final BufferedImage ancestorImage : _ancestorImages) {
+            g2d.drawImage(ancestorImage, 0, 0, null);
+         }
 
-      private void addSourceTile(final SourcePyramidTile sourceTile) {
-         final Integer rowKey = sourceTile._row;
-         MergedTile current = _tiles.get(rowKey);
-         if (current == null) {
-            current = new MergedTile(this, rowKey);
-            _tiles.put(rowKey, current);
+         for (final BufferedImage sourceImage : _sourceImages) {
+            g2d.drawImage(sourceImage, 0, 0, null);
          }
-         current.addSourceTile(sourceTile);
+
+         g2d.dispose();
+
+         return image;
       }
 
 
-      private void process(final SourcePyramid[] sourcePyramids,
-                           final File outputDirectory,
-                           final Progress progress,
-                           final ExecutorService executor,
-                           final Object mutex) {
-         //Logger.log("  Processing column " + _level._level + "/" + _column);
-
-         final List<Integer> keys = new ArrayList<>(_tiles.keySet());
-         Collections.sort(keys);
-
-         for (final Integer key : keys) {
-            final MergedTile tile = _tiles.get(key);
-
-            executor.execute(new Runnable() {
-               @Override
-               public void run() {
-                  try {
-                     tile.process(sourcePyramids, outputDirectory, mutex);
-                     progress.stepDone();
-                  }
-                  catch (final IOException e) {
-                     e.printStackTrace();
-                  }
-               }
-            });
-            // tile.process(sourcePyramids, outputDirectory);
-            //progress.stepDone();
+      /**
+       * Encode stage: encodes the image to JPEG, unless an identical tile was already stored (when deduplicating).
+       */
+      private void encode() throws IOException {
+         if (_deduplicator != null) {
+            _digest = TileDeduplicator.digest(_image);
+            _original = _deduplicator.getOriginal(_digest);
          }
+         if (_original == null) {
+            _data = IOUtils.encodeJPEG(_image, _jpegQuality);
+         }
+         _image = null;
       }
 
 
-      private String getRelativeFileName() {
-         return _level.getRelativeFileName() + "/" + _column;
+      /**
+       * Write stage: stores the encoded tile, or a copy of the identical one.
+       */
+      private void write(final TileSink sink) throws IOException {
+         if (_original == null) {
+            sink.write(getLevel(), getColumn(), getRow(), _data, null);
+            if (_deduplicator != null) {
+               _deduplicator.stored(_digest, getLevel(), getColumn(), getRow());
+            }
+         }
+         else {
+            _deduplicator.writeCopy(sink, getLevel(), getColumn(), getRow(), _original, null);
+         }
+         _data = null;
       }
+   }
+
+
+   /**
+    * Streams the tiles of a level of the merged pyramid in Z-order, k-way merging the sorted Z-order codes of the level
+    * of every source pyramid: only a cursor per source pyramid is kept, the merged tiles aren't stored.
+    */
+   private static class LevelMerge {
+      private final int      _level;
+      private final long[][] _sourceCodes;
+      private final int[]    _cursors;
+      private final long[]   _mask;
+      private long           _code;
+      // the tiles of the source pyramids in the level, and the merged ones walked so far
+      private long           _sourceTilesCount = 0;
+      private long           _mergedTilesCount = 0;
 
 
-      private long getTilesCount() {
-         return _tiles.size();
+      private LevelMerge(final int level,
+                         final SourcePyramid[] sourcePyramids) {
+         _level = level;
+         _sourceCodes = new long[sourcePyramids.length][];
+         for (int i = 0; i < sourcePyramids.length; i++) {
+            final SourcePyramidLevel sourceLevel = sourcePyramids[i].getLevel(level);
+            _sourceCodes[i] = (sourceLevel == null) ? new long[0] : sourceLevel.createZOrderCodes();
+            _sourceTilesCount += _sourceCodes[i].length;
+         }
+         _cursors = new int[sourcePyramids.length];
+         // a bit for every source pyramid contributing to the current tile
+         _mask = new long[(sourcePyramids.length + 63) / 64];
       }
 
 
-   }
+      /**
+       * Moves the merge to the next tile, answering false once every tile of the level was merged.
+       */
+      private boolean next() {
+         long code = Long.MAX_VALUE;
+         for (int i = 0; i < _sourceCodes.length; i++) {
+            if (_cursors[i] < _sourceCodes[i].length) {
+               code = Math.min(code, _sourceCodes[i][_cursors[i]]);
+            }
+         }
+         if (code == Long.MAX_VALUE) {
+            return false;
+         }
+
+         _code = code;
+         Arrays.fill(_mask, 0);
+         for (int i = 0; i < _sourceCodes.length; i++) {
+            if ((_cursors[i] < _sourceCodes[i].length) && (_sourceCodes[i][_cursors[i]] == code)) {
+               _mask[i / 64] |= 1L << (i % 64);
+               _cursors[i]++;
+            }
+         }
+         _mergedTilesCount++;
+         return true;
+      }
 
 
-   private class MergedLevel {
-      private final int                        _level;
-      private final Map<Integer, MergedColumn> _columns = new HashMap<>();
+      /**
+       * Answers the source tiles of the current tile, in the order of their source pyramids.
+       */
+      private List<SourcePyramidTile> getSourceTiles(final SourcePyramid[] sourcePyramids) {
+         final int column = ZOrder.getColumn(_code);
+         final int row = ZOrder.getRow(_code);
+         final List<SourcePyramidTile> sourceTiles = new ArrayList<>(2);
+         for (int word = 0; word < _mask.length; word++) {
+            long mask = _mask[word];
+            while (mask != 0) {
+               final int i = (word * 64) + Long.numberOfTrailingZeros(mask);
+               sourceTiles.add(sourcePyramids[i].getTile(_level, column, row));
+               mask &= mask - 1;
+            }
+         }
+         return sourceTiles;
+      }
+   }
 
 
-      private MergedLevel(final int level) {
-         _level = level;
+   /**
+    * Walks the levels in merge order, answering the tiles in batches as the LevelMerge of the current level streams them.
+    * The tiles of a level are walked in Z-order (interleaving the bits of the column and the row), so the descendants of
+    * an ancestor are merged one after the other, while its decoded image is still in the ancestors cache. Only the tiles
+    * of the current batch are created.
+    * <p>
+    * The progress starts with the tiles of all the source pyramids (getMaxTilesCount()), and every merged level corrects
+    * it with its actual count.
+    */
+   private class TileBatches
+      implements
+         Iterator<List<MergedTile>> {
+
+      private final int      _batchSize;
+      private final Progress _progress;
+      private int            _levelIndex = -1;
+      private LevelMerge     _merge      = null;
+      private boolean        _hasTile    = false;
+
+
+      private TileBatches(final int batchSize,
+                          final Progress progress) {
+         _batchSize = batchSize;
+         _progress = progress;
       }
 
 
-      public void addSourceTile(final SourcePyramidColumn sourceColumn,
-                                final SourcePyramidTile sourceTile) {
-         final Integer columnKey = sourceColumn._column;
-         MergedColumn current = _columns.get(columnKey);
-         if (current == null) {
-            current = new MergedColumn(this, columnKey);
-            _columns.put(columnKey, current);
+      private void levelMerged() {
+         if (_merge != null) {
+            // the tiles of several source pyramids at the same place are a single merged tile
+            _progress.incrementSteps(_merge._mergedTilesCount - _merge._sourceTilesCount);
          }
-         current.addSourceTile(sourceTile);
       }
 
 
-      private void process(final SourcePyramid[] sourcePyramids,
-                           final File outputDirectory,
-                           final Progress progress,
-                           final ExecutorService executor,
-                           final Object mutex) {
-         //Logger.log("Processing level " + _level);
+      /**
+       * Moves the walk to the next tile, answering false once every tile was walked.
+       */
+      private boolean advance() {
+         while (!_hasTile) {
+            if ((_merge != null) && _merge.next()) {
+               _hasTile = true;
+            }
+            else if ((_levelIndex + 1) < _levels.length) {
+               levelMerged();
+               _levelIndex++;
+               // the codes of the previous level are dropped with its merge
+               _merge = new LevelMerge(_levels[_levelIndex], _sourcePyramids);
+            }
+            else {
+               levelMerged();
+               _merge = null;
+               return false;
+            }
+         }
+         return true;
+      }
 
-         final List<Integer> keys = new ArrayList<>(_columns.keySet());
-         Collections.sort(keys);
 
-         for (final Integer key : keys) {
-            final MergedColumn column = _columns.get(key);
-            column.process(sourcePyramids, outputDirectory, progress, executor, mutex);
-         }
+      private MergedTile nextTile() {
+         _hasTile = false;
+         return new MergedTile(_merge._level, ZOrder.getColumn(_merge._code), ZOrder.getRow(_merge._code),
+                  _merge.getSourceTiles(_sourcePyramids));
       }
 
 
-      private String getRelativeFileName() {
-         return Integer.toString(_level);
+      @Override
+      public boolean hasNext() {
+         return advance();
       }
 
 
-      private long getTilesCount() {
-         long tilesCount = 0;
-         for (final MergedColumn column : _columns.values()) {
-            tilesCount += column.getTilesCount();
+      @Override
+      public List<MergedTile> next() {
+         if (!advance()) {
+            throw new NoSuchElementException();
+         }
+         final List<MergedTile> batch = new ArrayList<>(_batchSize);
+         while ((batch.size() < _batchSize) && advance()) {
+            batch.add(nextTile());
          }
-         return tilesCount;
+         return batch;
       }
-
    }
 
+
+   private static final int                TILES_PER_BATCH    = 16;
+   private static final long               REPORT_INTERVAL_MS = 10000;
+
    private final Pyramid                   _pyramid;
    private final SourcePyramid[]           _sourcePyramids;
-   private final Map<Integer, MergedLevel> _levels = new HashMap<>();
+   private final int[]                     _levels;
    private final float                     _jpegQuality;
+   private final Resampler                 _resampler;
+   // null to encode every tile
+   private final TileDeduplicator          _deduplicator;
+   private final SourceTileImageCache      _ancestorsCache;
+   private final AtomicLong                _hiddenTilesCount = new AtomicLong();
 
 
    public MergedPyramid(final Pyramid pyramid,
                         final SourcePyramid[] sourcePyramids,
                         final float jpegQuality) {
+      this(pyramid, sourcePyramids, jpegQuality, Resampler.createDefault());
+   }
+
+
+   /**
+    * @param resampler
+    *           used to upsample the ancestors filling the tiles not covered by every source pyramid
+    */
+   public MergedPyramid(final Pyramid pyramid,
+                        final SourcePyramid[] sourcePyramids,
+                        final float jpegQuality,
+                        final Resampler resampler) {
+      this(pyramid, sourcePyramids, jpegQuality, resampler, false);
+   }
+
+
+   /**
+    * @param resampler
+    *           used to upsample the ancestors filling the tiles not covered by every source pyramid
+    * @param deduplicate
+    *           true to store the tiles identical to a recently stored one as copies of it (see TileDeduplicator)
+    */
+   public MergedPyramid(final Pyramid pyramid,
+                        final SourcePyramid[] sourcePyramids,
+                        final float jpegQuality,
+                        final Resampler resampler,
+                        final boolean deduplicate) {
       _pyramid = pyramid;
       _sourcePyramids = sourcePyramids;
       _jpegQuality = jpegQuality;
+      _resampler = resampler;
+      _deduplicator = deduplicate ? TileDeduplicator.createDefault() : null;
+      // an ancestor is reused by (up to) every tile of its subtree, while the source tiles are decoded only once
+      _ancestorsCache = new SourceTileImageCache(Runtime.getRuntime().maxMemory() / 8);
 
-      for (final SourcePyramid sourcePyramid : _sourcePyramids) {
-         for (final SourcePyramidLevel sourceLevel : sourcePyramid.getLevels()) {
-            for (final SourcePyramidColumn sourceColumn : sourceLevel.getColumns()) {
-               for (final SourcePyramidTile sourceTile : sourceColumn.getTiles()) {
-                  addSourceTile(sourceLevel, sourceColumn, sourceTile);
-               }
-            }
-         }
-      }
+      _levels = getLevels(sourcePyramids);
    }
 
 
-   private void addSourceTile(final SourcePyramidLevel sourceLevel,
-                              final SourcePyramidColumn sourceColumn,
-                              final SourcePyramidTile sourceTile) {
-      final Integer levelKey = sourceLevel._level;
-      MergedLevel current = _levels.get(levelKey);
-      if (current == null) {
-         current = new MergedLevel(levelKey);
-         _levels.put(levelKey, current);
+   /**
+    * Answers the levels of any of the source pyramids, sorted. The tiles are merged while walked, by process().
+    */
+   private static int[] getLevels(final SourcePyramid[] sourcePyramids) {
+      final SortedSet<Integer> levels = new TreeSet<>();
+      for (final SourcePyramid sourcePyramid : sourcePyramids) {
+         for (final SourcePyramidLevel sourceLevel : sourcePyramid.getLevels()) {
+            levels.add(sourceLevel._level);
+         }
       }
-      current.addSourceTile(sourceColumn, sourceTile);
+      return levels.stream().mapToInt(Integer::intValue).toArray();
    }
 
 
-   public void process(final File outputDirectory,
+   /**
+    * Merges every tile into the sink, through a pipeline of stages with their own threads and bounded queues: read
+    * (decoding the source and ancestor tiles), compose, encode and write. The I/O bound stages (read and write) run
+    * ioThreads threads, the CPU bound ones cpuThreads.
+    * <p>
+    * The calling thread walks the tiles lazily, feeding the read stage with batches of tiles; it blocks while the read
+    * queue is full, instead of merging tiles itself, and logs the queue depth and the idle time of every stage from time
+    * to time.
+    *
+    * @param progress
+    *           created with getMaxTilesCount() steps, corrected to the merged tiles count as the levels are walked
+    */
+   public void process(final TileSink sink,
                        final Progress progress,
-                       final ExecutorService executor,
-                       final Object mutex) {
-      final List<Integer> keys = new ArrayList<>(_levels.keySet());
-      Collections.sort(keys);
-
-      for (final Integer key : keys) {
-         //final int __REMOVE;
-         //if (key.intValue() <= 10) {
-         final MergedLevel level = _levels.get(key);
-         level.process(_sourcePyramids, outputDirectory, progress, executor, mutex);
-         //}
+                       final int cpuThreads,
+                       final int ioThreads) throws IOException {
+      final PipelineStage<TileJob> writeStage = new PipelineStage<>("write", ioThreads, ioThreads * 2, job -> {
+         job.write(sink);
+         progress.stepDone();
+      });
+      final PipelineStage<TileJob> encodeStage = new PipelineStage<>("encode", cpuThreads, cpuThreads * 2, job -> {
+         job.encode();
+         writeStage.put(job);
+      });
+      final PipelineStage<TileJob> composeStage = new PipelineStage<>("compose", cpuThreads, cpuThreads * 2, job -> {
+         job.compose();
+         encodeStage.put(job);
+      });
+      final PipelineStage<List<MergedTile>> readStage = new PipelineStage<>("read", ioThreads, ioThreads, batch -> {
+         for (final MergedTile tile : batch) {
+            final TileJob job = new TileJob(tile);
+            job.read();
+            composeStage.put(job);
+         }
+      });
+
+      Throwable failure = null;
+      try {
+         long lastReport = System.currentTimeMillis();
+         final TileBatches batches = new TileBatches(TILES_PER_BATCH, progress);
+         while (batches.hasNext()) {
+            readStage.put(batches.next());
+
+            final long now = System.currentTimeMillis();
+            if ((now - lastReport) >= REPORT_INTERVAL_MS) {
+               lastReport = now;
+               Logger.log("Pipeline " + readStage.getSummary() + " | " + composeStage.getSummary() + " | "
+                          + encodeStage.getSummary() + " | " + writeStage.getSummary());
+            }
+         }
       }
-   }
-
-
-   private void saveImage(final File output,
-                          final BufferedImage image,
-                          final Object mutex) throws IOException {
-      synchronized (mutex) {
-         final File directory = output.getParentFile();
-         if (!directory.exists()) {
-            if (!directory.mkdirs()) {
-               throw new IOException("Can't create directory \"" + directory.getAbsolutePath() + "\"");
+      catch (final IOException | RuntimeException | Error e) {
+         failure = e;
+         throw e;
+      }
+      finally {
+         // a failure finishing the stages doesn't replace the one of the feeding loop, it's attached to it
+         try {
+            PipelineStage.finishAll(readStage, composeStage, encodeStage, writeStage);
+         }
+         catch (final IOException | RuntimeException e) {
+            if (failure == null) {
+               throw e;
             }
+            failure.addSuppressed(e);
+         }
+         finally {
+            Logger.log(readStage.toString());
+            Logger.log(composeStage.toString());
+            Logger.log(encodeStage.toString());
+            Logger.log(writeStage.toString());
+            Logger.log(_ancestorsCache.toString());
+            Logger.log("Skipped " + _hiddenTilesCount.get() + " hidden source and ancestor tiles");
          }
       }
-
-      final BufferedImage imageRGB = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
-      final Graphics2D g2d = imageRGB.createGraphics();
-      g2d.drawImage(image, 0, 0, null);
-      g2d.dispose();
-
-      IOUtils.writeJPEG(imageRGB, output, _jpegQuality);
    }
 
 
-   private static boolean isFullOpaque(final BufferedImage image) {
-      final int width = image.getWidth();
-      final int height = image.getHeight();
-      for (int x = 0; x < width; x++) {
-         for (int y = 0; y < height; y++) {
-            final int rbg = image.getRGB(x, y);
-            final int alpha = (rbg >> 24) & 0xff;
-            if (alpha < 255) {
-               return false;
-            }
-         }
-      }
-      return true;
+   /**
+    * Answers the number of tiles written as copies of identical tiles.
+    */
+   public long getCopiedTilesCount() {
+      return (_deduplicator == null) ? 0 : _deduplicator.getCopiesCount();
    }
 
 
-   public long getTilesCount() {
-      long tilesCount = 0;
-      for (final MergedLevel level : _levels.values()) {
-         tilesCount += level.getTilesCount();
+   /**
+    * Answers an upper bound of the number of tiles of the merged pyramid, the tiles of all the source pyramids, without
+    * walking them (the tiles of several source pyramids at the same place are merged into one).
+    */
+   public long getMaxTilesCount() {
+      long count = 0;
+      for (final SourcePyramid sourcePyramid : _sourcePyramids) {
+         count += sourcePyramid.getTilesCount();
       }
-      return tilesCount;
+      return count;
    }
 
 
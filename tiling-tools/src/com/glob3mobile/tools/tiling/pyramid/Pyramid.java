@@ -6,6 +6,7 @@ import java.awt.geom.Point2D;
 import java.util.List;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.glob3mobile.geo.GEOSector;
 
@@ -51,11 +52,89 @@ public abstract class Pyramid {
    public abstract int getNumberOfRows(int level);
 
 
-   public abstract void checkCRS(GridCoverage2D coverage);
+   public abstract int getNumberOfColumns(int level);
+
+
+   /**
+    * Answers the range of the tiles of the given level touching the given sector, computed arithmetically (without
+    * creating the Tile tree).
+    */
+   public abstract TileRange getTileRange(GEOSector sector,
+                                          int level);
+
+
+   /**
+    * Answers the sector of the tile, with the Tile convention for the row (row 0 at the south).
+    */
+   public abstract GEOSector getTileSector(int level,
+                                           int column,
+                                           int row);
+
+
+   /**
+    * Answers the range of tile indices touching the interval [lower, upper], given in tile units (the position of the
+    * lower edge of the tile 0 is 0). Tiles sharing only an edge with the interval are included, as GEOSector.touchesWith()
+    * does.
+    */
+   protected static int[] touchingIndices(final double lower,
+                                          final double upper,
+                                          final int count) {
+      final int min = Math.max((int) Math.ceil(lower) - 1, 0);
+      final int max = Math.min((int) Math.floor(upper), count - 1);
+      return new int[] {
+         min,
+         max
+      };
+   }
+
+
+   public void checkCRS(final GridCoverage2D coverage) {
+      checkCRS(coverage.getCoordinateReferenceSystem());
+   }
+
+
+   public abstract void checkCRS(CoordinateReferenceSystem crs);
+
+
+   /**
+    * Answers true if the tiles can't be cut from images in the given CRS (accepted by checkCRS()) by scaling, but have to
+    * be warped row by row using getPixelsLatitudes().
+    */
+   public boolean needsWarp(final CoordinateReferenceSystem crs) {
+      return false;
+   }
+
+
+   /**
+    * Answers the latitude of the center of every row of pixels (top to bottom) of the tiles of the given row (with the
+    * Tile convention, row 0 at the south).
+    */
+   public double[] getPixelsLatitudes(final int level,
+                                      final int row) {
+      final GEOSector sector = getTileSector(level, 0, row);
+      final int tileImageHeight = getTileImageHeight();
+      final double[] result = new double[tileImageHeight];
+      for (int y = 0; y < tileImageHeight; y++) {
+         result[y] = sector._upper._latitude - ((sector._delta._latitude * (y + 0.5)) / tileImageHeight);
+      }
+      return result;
+   }
 
 
    public abstract GEOSector sectorFor(int level,
                                        int column,
                                        int row);
 
+
+   /**
+    * Answers the EPSG code of the CRS of the tiles images.
+    */
+   public abstract int getEPSGCode();
+
+
+   /**
+    * Answers the bounds of the level 0 (and of every level) in the units of getEPSGCode(), as {minX, minY, maxX, maxY}.
+    */
+   public abstract double[] getProjectedBounds();
+
 }
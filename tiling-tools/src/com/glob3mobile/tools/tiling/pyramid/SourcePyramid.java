@@ -3,21 +3,36 @@
 package com.glob3mobile.tools.tiling.pyramid;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
 
 import com.glob3mobile.utils.IOUtils;
 import com.glob3mobile.utils.Logger;
 
 
 public class SourcePyramid {
+
+   // the scans are I/O bound (and the network file systems serve deep queues), so more threads than cores
+   private static final int          SCAN_THREADS = Math.max(Runtime.getRuntime().availableProcessors() * 4, 8);
+   private static final ForkJoinPool SCAN_POOL    = new ForkJoinPool(SCAN_THREADS);
+
    private final File                     _directory;
    private final List<SourcePyramidLevel> _levels;
+   private final SourcePyramidIndex       _index;
+   private final boolean[]                _hasLevel;
+   private final int                      _maxLevel;
 
 
    public SourcePyramid(final File directory) throws IOException {
@@ -26,86 +41,174 @@ public class SourcePyramid {
       Logger.log("Reading \"" + directory.getAbsolutePath() + "\"");
 
       _levels = initializeLevels();
-   }
+      _index = new SourcePyramidIndex(_levels);
 
+      int manifestLevels = 0;
+      for (final SourcePyramidLevel level : _levels) {
+         if (level.isFromManifest()) {
+            manifestLevels++;
+         }
+      }
+      Logger.log("Read \"" + directory.getAbsolutePath() + "\": " + _index.size() + " tiles, " + manifestLevels + " of "
+                 + _levels.size() + " levels from their manifests");
 
-   private List<SourcePyramidLevel> initializeLevels() {
-      final File[] levelsDirectories = getNumberedDirectories(_directory);
-      final List<SourcePyramidLevel> levels = new ArrayList<SourcePyramidLevel>(levelsDirectories.length);
-      for (final File levelDirectory : levelsDirectories) {
-         levels.add(new SourcePyramidLevel(this, levelDirectory));
+      int maxLevel = Integer.MIN_VALUE;
+      for (final SourcePyramidLevel level : _levels) {
+         maxLevel = Math.max(maxLevel, level._level);
+      }
+      _maxLevel = maxLevel;
+      _hasLevel = new boolean[Math.max(maxLevel + 1, 0)];
+      for (final SourcePyramidLevel level : _levels) {
+         _hasLevel[level._level] = true;
       }
-      return levels;
    }
 
 
-   static File[] getNumberedDirectories(final File directory) {
-      final File[] result = directory.listFiles(new FilenameFilter() {
-         @Override
-         public boolean accept(final File dir,
-                               final String name) {
-            try {
-               Integer.parseInt(name);
-               return true;
-            }
-            catch (final NumberFormatException e) {
-               return false;
-            }
+   private List<SourcePyramidLevel> initializeLevels() throws IOException {
+      return scanAll(getNumberedDirectories(_directory), levelDirectory -> new SourcePyramidLevel(this, levelDirectory));
+   }
+
+
+   /**
+    * Scans the given directories in parallel (and the levels and the columns of each one).
+    */
+   public static SourcePyramid[] open(final File[] directories) throws IOException {
+      return scanAll(directories, SourcePyramid::new).toArray(new SourcePyramid[directories.length]);
+   }
+
+
+   interface Scanner<T, R> {
+      R scan(T item) throws IOException;
+   }
+
+
+   /**
+    * Answers the results of scanning every item, in the order of the items. The items are spread over the threads of
+    * SCAN_POOL, the nested scans of the scanners too.
+    */
+   static <T, R> List<R> scanAll(final T[] items,
+                                 final Scanner<T, R> scanner) throws IOException {
+      final Callable<List<R>> scan = () -> Arrays.stream(items).parallel().map(item -> {
+         try {
+            return scanner.scan(item);
          }
-      });
-
-      Arrays.sort(result, new Comparator<File>() {
-         @Override
-         public int compare(final File o1,
-                            final File o2) {
-            final int i1 = Integer.parseInt(o1.getName());
-            final int i2 = Integer.parseInt(o2.getName());
-            return Integer.compare(i1, i2);
+         catch (final IOException e) {
+            throw new UncheckedIOException(e);
          }
-      });
+      }).collect(Collectors.toList());
 
-      return result;
+      try {
+         // a nested scan is already running in the pool, its stream is split in the same pool
+         return (ForkJoinTask.getPool() == SCAN_POOL) ? scan.call() : SCAN_POOL.submit(scan).get();
+      }
+      catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while scanning", e);
+      }
+      catch (final ExecutionException e) {
+         throw toIOException(e.getCause());
+      }
+      catch (final Exception e) {
+         throw toIOException(e);
+      }
    }
 
 
-   private static String removeExtension(final String name) {
-      return name.substring(0, name.length() - ".png".length());
+   private static IOException toIOException(final Throwable e) {
+      if (e instanceof UncheckedIOException) {
+         return ((UncheckedIOException) e).getCause();
+      }
+      if (e instanceof IOException) {
+         return (IOException) e;
+      }
+      if (e instanceof RuntimeException) {
+         throw (RuntimeException) e;
+      }
+      if (e instanceof Error) {
+         throw (Error) e;
+      }
+      return new IOException(e);
    }
 
 
-   static File[] getNumberedImages(final File directory) {
-      final File[] result = directory.listFiles(new FilenameFilter() {
-         @Override
-         public boolean accept(final File dir,
-                               final String name) {
-            if (!name.toLowerCase().endsWith(".png")) {
-               return false;
-            }
+   static File[] getNumberedDirectories(final File directory) throws IOException {
+      return listNumbered(directory, "");
+   }
 
-            try {
-               final String nameSansExtension = removeExtension(name);
-               Integer.parseInt(nameSansExtension);
-               return true;
-            }
-            catch (final NumberFormatException e) {
-               return false;
+
+   static File[] getNumberedImages(final File directory) throws IOException {
+      return listNumbered(directory, ".png");
+   }
+
+
+   /**
+    * Answers the files named by a number (followed by the given suffix, ignoring its case), sorted by number.
+    */
+   private static File[] listNumbered(final File directory,
+                                      final String suffix) throws IOException {
+      final List<String> names = new ArrayList<>();
+      long[] keys = new long[64];
+      try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+         for (final Path path : stream) {
+            final String name = path.getFileName().toString();
+            final int number = parseNumber(name, suffix);
+            if (number >= 0) {
+               if (names.size() == keys.length) {
+                  keys = Arrays.copyOf(keys, keys.length * 2);
+               }
+               // sorted by number, keeping the index of the name
+               keys[names.size()] = ((long) number << 32) | names.size();
+               names.add(name);
             }
          }
+      }
 
+      final int count = names.size();
+      Arrays.sort(keys, 0, count);
+      final File[] result = new File[count];
+      for (int i = 0; i < count; i++) {
+         result[i] = new File(directory, names.get((int) keys[i]));
+      }
+      return result;
+   }
 
-      });
 
-      Arrays.sort(result, new Comparator<File>() {
-         @Override
-         public int compare(final File o1,
-                            final File o2) {
-            final int i1 = Integer.parseInt(removeExtension(o1.getName()));
-            final int i2 = Integer.parseInt(removeExtension(o2.getName()));
-            return Integer.compare(i1, i2);
+   /**
+    * Answers the number of the given name (digits followed by the suffix), or -1 if the name isn't a number.
+    */
+   static int parseNumber(final String name,
+                          final String suffix) {
+      final int digitsLength = name.length() - suffix.length();
+      if ((digitsLength <= 0) || (digitsLength > 9) || !name.regionMatches(true, digitsLength, suffix, 0, suffix.length())) {
+         return -1;
+      }
+      int number = 0;
+      for (int i = 0; i < digitsLength; i++) {
+         final char c = name.charAt(i);
+         if ((c < '0') || (c > '9')) {
+            return -1;
          }
-      });
+         number = (number * 10) + (c - '0');
+      }
+      return number;
+   }
 
-      return result;
+
+   File getDirectory() {
+      return _directory;
+   }
+
+
+   /**
+    * Answers the given level, or null if the pyramid hasn't such level.
+    */
+   SourcePyramidLevel getLevel(final int level) {
+      for (final SourcePyramidLevel sourceLevel : _levels) {
+         if (sourceLevel._level == level) {
+            return sourceLevel;
+         }
+      }
+      return null;
    }
 
 
@@ -126,18 +229,34 @@ public class SourcePyramid {
    }
 
 
+   /**
+    * Answers the tile, or null if the pyramid has no such tile.
+    */
+   SourcePyramidTile getTile(final int level,
+                             final int column,
+                             final int row) {
+      return _index.get(level, column, row);
+   }
+
+
+   /**
+    * Answers the tile covering the given one in the deepest level of the pyramid above the given level, or null if that
+    * level lacks the tile.
+    */
    SourcePyramidTile getBestAncestor(final int level,
                                      final int column,
                                      final int row) {
-      int ancestorLevel = level - 1;
-      int ancestorColumn = column / 2;
-      int ancestorRow = row / 2;
+      int ancestorLevel = Math.min(level - 1, _hasLevel.length - 1);
+      final int shift = level - ancestorLevel;
+      if (shift >= 32) {
+         return null;
+      }
+      int ancestorColumn = column >> shift;
+      int ancestorRow = row >> shift;
 
       while (ancestorLevel >= 0) {
-         for (final SourcePyramidLevel sourceLevel : _levels) {
-            if (sourceLevel._level == ancestorLevel) {
-               return sourceLevel.getTile(ancestorColumn, ancestorRow);
-            }
+         if (_hasLevel[ancestorLevel]) {
+            return _index.get(ancestorLevel, ancestorColumn, ancestorRow);
          }
          ancestorLevel = ancestorLevel - 1;
          ancestorColumn = ancestorColumn / 2;
@@ -148,13 +267,12 @@ public class SourcePyramid {
 
 
    public int getMaxLevel() {
-      int maxLevel = Integer.MIN_VALUE;
-      for (final SourcePyramidLevel level : _levels) {
-         if (level._level > maxLevel) {
-            maxLevel = level._level;
-         }
-      }
-      return maxLevel;
+      return _maxLevel;
+   }
+
+
+   int getTilesCount() {
+      return _index.size();
    }
 
 
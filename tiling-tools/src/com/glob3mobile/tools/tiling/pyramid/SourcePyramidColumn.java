@@ -3,6 +3,7 @@
 package com.glob3mobile.tools.tiling.pyramid;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -15,21 +16,56 @@ class SourcePyramidColumn {
    private final List<SourcePyramidTile> _tiles;
 
 
+   /**
+    * @param manifest
+    *           the manifest of the level, giving the opacity of the tiles, or null
+    */
    SourcePyramidColumn(final SourcePyramidLevel level,
-                       final File directory) {
+                       final File directory,
+                       final TilesManifestLevel manifest) throws IOException {
       _level = level;
       _directory = directory;
       _column = Integer.parseInt(directory.getName());
 
-      _tiles = initializeTiles();
+      _tiles = initializeTiles(manifest);
    }
 
 
-   private List<SourcePyramidTile> initializeTiles() {
+   /**
+    * Creates the column with the tiles recorded as written by the given range of records of the manifest, without
+    * scanning its directory.
+    */
+   SourcePyramidColumn(final SourcePyramidLevel level,
+                       final int column,
+                       final TilesManifestLevel manifest,
+                       final int fromIndex,
+                       final int toIndex) {
+      _level = level;
+      _directory = new File(level.getDirectory(), Integer.toString(column));
+      _column = column;
+
+      _tiles = new ArrayList<>(toIndex - fromIndex);
+      int previousRow = -1;
+      for (int i = fromIndex; i < toIndex; i++) {
+         final int row = manifest.getWrittenRow(i);
+         // a tile recorded twice
+         if (row != previousRow) {
+            _tiles.add(new SourcePyramidTile(this, row, manifest.getState(column, row)));
+         }
+         previousRow = row;
+      }
+   }
+
+
+   private List<SourcePyramidTile> initializeTiles(final TilesManifestLevel manifest) throws IOException {
       final File[] imagesFiles = SourcePyramid.getNumberedImages(_directory);
       final List<SourcePyramidTile> tiles = new ArrayList<>(imagesFiles.length);
       for (final File imageFile : imagesFiles) {
-         tiles.add(new SourcePyramidTile(this, imageFile));
+         final SourcePyramidTile tile = new SourcePyramidTile(this, imageFile, manifest);
+         // a file left by a previous run, recorded as fully transparent by the last one
+         if (tile.getState() != TilesManifest.EMPTY) {
+            tiles.add(tile);
+         }
       }
       return tiles;
    }
@@ -47,18 +83,18 @@ class SourcePyramidColumn {
    }
 
 
+   File getDirectory() {
+      return _directory;
+   }
+
+
    public List<SourcePyramidTile> getTiles() {
       return Collections.unmodifiableList(_tiles);
    }
 
 
    SourcePyramidTile getTile(final int row) {
-      for (final SourcePyramidTile sourceTile : _tiles) {
-         if (sourceTile._row == row) {
-            return sourceTile;
-         }
-      }
-      return null;
+      return _level._pyramid.getTile(_level._level, _column, row);
    }
 
 }
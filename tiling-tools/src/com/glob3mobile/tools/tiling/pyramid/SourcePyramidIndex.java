@@ -0,0 +1,110 @@
+
+
+package com.glob3mobile.tools.tiling.pyramid;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The tiles of a SourcePyramid, looked up by the key packing their level, column and row (binary searched in a sorted
+ * array), without allocating nor walking the levels and columns.
+ */
+class SourcePyramidIndex {
+
+   private static final int MAX_LEVEL  = 127;
+   private static final int MAX_NUMBER = (1 << 28) - 1;
+
+
+   /**
+    * Packs the coordinates of a tile in a key, ordered by level, column and row.
+    */
+   static long toKey(final int level,
+                     final int column,
+                     final int row) {
+      return ((long) level << 56) | ((long) column << 28) | row;
+   }
+
+
+   static boolean isIndexable(final int level,
+                              final int column,
+                              final int row) {
+      return (level >= 0) && (level <= MAX_LEVEL) && (column >= 0) && (column <= MAX_NUMBER) && (row >= 0)
+             && (row <= MAX_NUMBER);
+   }
+
+
+   private final long[]              _keys;
+   private final SourcePyramidTile[] _tiles;
+
+
+   SourcePyramidIndex(final List<SourcePyramidLevel> levels) {
+      int count = 0;
+      for (final SourcePyramidLevel level : levels) {
+         for (final SourcePyramidColumn column : level.getColumns()) {
+            count += column.getTiles().size();
+         }
+      }
+
+      final long[] keys = new long[count];
+      final SourcePyramidTile[] tiles = new SourcePyramidTile[count];
+      boolean sorted = true;
+      int i = 0;
+      for (final SourcePyramidLevel level : levels) {
+         for (final SourcePyramidColumn column : level.getColumns()) {
+            for (final SourcePyramidTile tile : column.getTiles()) {
+               if (!isIndexable(level._level, column._column, tile._row)) {
+                  throw new IllegalArgumentException("Tile out of the index range: " + level._level + "/" + column._column
+                                                     + "/" + tile._row);
+               }
+               keys[i] = toKey(level._level, column._column, tile._row);
+               tiles[i] = tile;
+               if ((i > 0) && (keys[i - 1] >= keys[i])) {
+                  sorted = false;
+               }
+               i++;
+            }
+         }
+      }
+
+      if (sorted) {
+         _keys = keys;
+         _tiles = tiles;
+      }
+      else {
+         // the scans list the levels, columns and tiles in numeric order, so this is just a safety net
+         final Integer[] order = new Integer[count];
+         for (int j = 0; j < count; j++) {
+            order[j] = j;
+         }
+         Arrays.sort(order, (j1,
+                             j2) -> Long.compare(keys[j1], keys[j2]));
+         _keys = new long[count];
+         _tiles = new SourcePyramidTile[count];
+         for (int j = 0; j < count; j++) {
+            _keys[j] = keys[order[j]];
+            _tiles[j] = tiles[order[j]];
+         }
+      }
+   }
+
+
+   /**
+    * Answers the tile, or null if the pyramid has no such tile.
+    */
+   SourcePyramidTile get(final int level,
+                         final int column,
+                         final int row) {
+      if (!isIndexable(level, column, row)) {
+         return null;
+      }
+      final int index = Arrays.binarySearch(_keys, toKey(level, column, row));
+      return (index < 0) ? null : _tiles[index];
+   }
+
+
+   int size() {
+      return _keys.length;
+   }
+
+}
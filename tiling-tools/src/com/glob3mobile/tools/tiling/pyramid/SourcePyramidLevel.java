@@ -3,35 +3,128 @@
 package com.glob3mobile.tools.tiling.pyramid;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import com.glob3mobile.utils.Logger;
+
 
 class SourcePyramidLevel {
    public SourcePyramid                    _pyramid;
    private final File                      _directory;
    public final int                        _level;
    private final List<SourcePyramidColumn> _columns;
+   private final boolean                   _fromManifest;
 
 
+   /**
+    * The tiles are taken from the manifest written by the Tiler when it's up to date, otherwise the directories of the
+    * level are scanned.
+    */
    SourcePyramidLevel(final SourcePyramid pyramid,
-                      final File directory) {
+                      final File directory) throws IOException {
       _pyramid = pyramid;
       _directory = directory;
       _level = Integer.parseInt(directory.getName());
 
-      _columns = initializeColumns();
+      final TilesManifestLevel manifest = readManifest();
+      final List<SourcePyramidColumn> manifestColumns = loadColumns(manifest);
+      _fromManifest = (manifestColumns != null);
+      _columns = _fromManifest ? manifestColumns : initializeColumns(manifest);
+   }
+
+
+   /**
+    * Answers the manifest written by the Tiler for the level (without tiles if there is no manifest), or null if it
+    * can't be read.
+    */
+   private TilesManifestLevel readManifest() {
+      try {
+         return TilesManifestLevel.read(_pyramid.getDirectory(), _level);
+      }
+      catch (final IOException e) {
+         Logger.log("Ignoring the manifest of level " + _level + " of \"" + _pyramid.getDirectory() + "\": "
+                    + e.getMessage());
+         return null;
+      }
    }
 
 
-   private List<SourcePyramidColumn> initializeColumns() {
-      final File[] levelsDirectories = SourcePyramid.getNumberedDirectories(_directory);
-      final List<SourcePyramidColumn> levels = new ArrayList<>(levelsDirectories.length);
-      for (final File levelDirectory : levelsDirectories) {
-         levels.add(new SourcePyramidColumn(this, levelDirectory));
+   /**
+    * Answers the columns recorded by the manifest, or null if the manifest is missing, incomplete, or older than any of
+    * the directories of the level (the tiles were changed after the Tiler run).
+    */
+   private List<SourcePyramidColumn> loadColumns(final TilesManifestLevel manifest) {
+      if ((manifest == null) || !manifest.isCompleted()) {
+         return null;
       }
-      return levels;
+      final long manifestModified = manifest.getLastModified();
+      // a new or removed column changes the level directory, a new or removed tile changes its column directory
+      if (_directory.lastModified() > manifestModified) {
+         return null;
+      }
+
+      final List<SourcePyramidColumn> columns = new ArrayList<>();
+      final int count = manifest.getWrittenCount();
+      int from = 0;
+      while (from < count) {
+         final int column = manifest.getWrittenColumn(from);
+         int to = from + 1;
+         while ((to < count) && (manifest.getWrittenColumn(to) == column)) {
+            to++;
+         }
+
+         final SourcePyramidColumn sourceColumn = new SourcePyramidColumn(this, column, manifest, from, to);
+         if (sourceColumn.getDirectory().lastModified() > manifestModified) {
+            return null;
+         }
+         columns.add(sourceColumn);
+         from = to;
+      }
+      return columns;
+   }
+
+
+   private List<SourcePyramidColumn> initializeColumns(final TilesManifestLevel manifest) throws IOException {
+      return SourcePyramid.scanAll(SourcePyramid.getNumberedDirectories(_directory),
+               columnDirectory -> new SourcePyramidColumn(this, columnDirectory, manifest));
+   }
+
+
+   /**
+    * Answers the sorted Z-order codes of the tiles of the level. They aren't kept by the level, every call computes them
+    * again, so they are only retained while the merge of the level is using them.
+    */
+   long[] createZOrderCodes() {
+      int count = 0;
+      for (final SourcePyramidColumn column : _columns) {
+         count += column.getTiles().size();
+      }
+      final long[] codes = new long[count];
+      int i = 0;
+      for (final SourcePyramidColumn column : _columns) {
+         for (final SourcePyramidTile tile : column.getTiles()) {
+            codes[i++] = ZOrder.encode(column._column, tile._row);
+         }
+      }
+      Arrays.sort(codes);
+      return codes;
+   }
+
+
+   File getDirectory() {
+      return _directory;
+   }
+
+
+   /**
+    * Answers true if the tiles were taken from the manifest, without scanning the directories.
+    */
+   boolean isFromManifest() {
+      return _fromManifest;
    }
 
 
@@ -54,12 +147,7 @@ class SourcePyramidLevel {
 
    SourcePyramidTile getTile(final int column,
                              final int row) {
-      for (final SourcePyramidColumn sourceColumn : _columns) {
-         if (sourceColumn._column == column) {
-            return sourceColumn.getTile(row);
-         }
-      }
-      return null;
+      return _pyramid.getTile(_level, column, row);
    }
 
 }
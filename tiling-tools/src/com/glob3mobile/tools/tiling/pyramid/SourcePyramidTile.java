@@ -9,44 +9,69 @@ class SourcePyramidTile {
    public final int          _row;
    final SourcePyramidColumn _column;
    private final File        _imageFile;
+   private final byte        _state;
 
 
-   //      private final boolean _isFullOpaque;
-
-
+   /**
+    * @param manifest
+    *           the manifest of the level, giving the opacity of the tile, or null
+    */
    SourcePyramidTile(final SourcePyramidColumn column,
-                     final File imageFile) {
+                     final File imageFile,
+                     final TilesManifestLevel manifest) {
       final String nameSansExtension = removeExtension(imageFile.getName());
       _row = Integer.parseInt(nameSansExtension);
       _column = column;
       _imageFile = imageFile;
-      //         _isFullOpaque = initializeIsOpaque();
+      final byte state = (manifest == null) ? -1 : manifest.getState(column._column, _row);
+      _state = (state == -1) ? TilesManifest.WRITTEN : state;
    }
 
 
-   private static String removeExtension(final String name) {
-      return name.substring(0, name.length() - ".png".length());
+   /**
+    * Creates a tile recorded by the manifest, its image file is named by the Tiler convention (&lt;row&gt;.png).
+    */
+   SourcePyramidTile(final SourcePyramidColumn column,
+                     final int row,
+                     final byte state) {
+      _row = row;
+      _column = column;
+      _imageFile = null;
+      _state = state;
    }
 
 
-   //      private boolean initializeIsOpaque() throws IOException {
-   //         final BufferedImage image = ImageIO.read(_imageFile);
-   //         return isFullOpaque(image);
-   //      }
+   private static String removeExtension(final String name) {
+      return name.substring(0, name.length() - ".png".length());
+   }
 
 
    @Override
    public String toString() {
       final StringBuilder builder = new StringBuilder();
       builder.append("[SourcePyramidTile ");
-      builder.append(_imageFile.getName());
+      builder.append(getImageFile().getName());
       builder.append("]");
       return builder.toString();
    }
 
 
+   /**
+    * Answers the state recorded by the manifest of the source pyramid (TilesManifest.OPAQUE, PARTIAL or EMPTY), or
+    * TilesManifest.WRITTEN if the opacity of the tile is unknown.
+    */
+   byte getState() {
+      return _state;
+   }
+
+
+   boolean isFullOpaque() {
+      return _state == TilesManifest.OPAQUE;
+   }
+
+
    public File getImageFile() {
-      return _imageFile;
+      return (_imageFile == null) ? new File(_column.getDirectory(), _row + ".png") : _imageFile;
    }
 
 
@@ -0,0 +1,158 @@
+
+
+package com.glob3mobile.tools.tiling.pyramid;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.glob3mobile.utils.StringUtils;
+
+
+/**
+ * LRU cache of the decoded images of source tiles (the ancestors upsampled by MergedPyramid, each one shared by many
+ * descendants), bounded by the bytes of the decoded rasters.
+ * <p>
+ * A tile is decoded once even if requested concurrently: the other threads wait for the decoding thread. The cached
+ * images are shared, they must not be modified.
+ */
+class SourceTileImageCache {
+
+   private static class Entry {
+      private final FutureTask<BufferedImage> _image;
+      private long                            _bytes = 0;
+
+
+      private Entry(final SourcePyramidTile tile) {
+         _image = new FutureTask<BufferedImage>(() -> {
+            final BufferedImage image = ImageIO.read(tile.getImageFile());
+            if (image == null) {
+               throw new IOException("Can't decode \"" + tile.getImageFile().getAbsolutePath() + "\"");
+            }
+            return image;
+         });
+      }
+   }
+
+
+   // SourcePyramidTile doesn't override equals(), the tiles (of every source pyramid) are their own keys
+   private final long                                    _maxBytes;
+   private final LinkedHashMap<SourcePyramidTile, Entry> _entries   = new LinkedHashMap<>(16, 0.75f, true);
+   private long                                          _bytes     = 0;
+   private final AtomicLong                              _hits      = new AtomicLong();
+   private final AtomicLong                              _misses    = new AtomicLong();
+   private final AtomicLong                              _evictions = new AtomicLong();
+
+
+   SourceTileImageCache(final long maxBytes) {
+      _maxBytes = maxBytes;
+   }
+
+
+   BufferedImage get(final SourcePyramidTile tile) throws IOException {
+      final Entry entry;
+      final boolean isNew;
+      synchronized (this) {
+         final Entry cached = _entries.get(tile);
+         isNew = (cached == null);
+         entry = isNew ? new Entry(tile) : cached;
+         if (isNew) {
+            _entries.put(tile, entry);
+         }
+      }
+
+      if (isNew) {
+         _misses.incrementAndGet();
+         entry._image.run();
+      }
+      else {
+         _hits.incrementAndGet();
+      }
+
+      final BufferedImage image;
+      try {
+         image = entry._image.get();
+      }
+      catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while decoding " + tile, e);
+      }
+      catch (final ExecutionException e) {
+         synchronized (this) {
+            _entries.remove(tile, entry);
+         }
+         final Throwable cause = e.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         }
+         throw new IOException(cause);
+      }
+
+      if (isNew) {
+         synchronized (this) {
+            // the entry could be already evicted, while decoding
+            if (_entries.get(tile) == entry) {
+               entry._bytes = getBytes(image);
+               _bytes += entry._bytes;
+               evict();
+            }
+         }
+      }
+      return image;
+   }
+
+
+   private static long getBytes(final BufferedImage image) {
+      final DataBuffer buffer = image.getRaster().getDataBuffer();
+      return (long) buffer.getSize() * buffer.getNumBanks() * (DataBuffer.getDataTypeSize(buffer.getDataType()) / 8);
+   }
+
+
+   /**
+    * Removes the least recently used entries while over the budget, keeping at least the newest one.
+    */
+   private void evict() {
+      final Iterator<Map.Entry<SourcePyramidTile, Entry>> iterator = _entries.entrySet().iterator();
+      while ((_bytes > _maxBytes) && (_entries.size() > 1) && iterator.hasNext()) {
+         final Entry eldest = iterator.next().getValue();
+         // the ones still being decoded are accounted once decoded
+         if (eldest._image.isDone()) {
+            iterator.remove();
+            _bytes -= eldest._bytes;
+            _evictions.incrementAndGet();
+         }
+      }
+   }
+
+
+   long getHits() {
+      return _hits.get();
+   }
+
+
+   long getMisses() {
+      return _misses.get();
+   }
+
+
+   long getEvictions() {
+      return _evictions.get();
+   }
+
+
+   @Override
+   public synchronized String toString() {
+      return "[SourceTileImageCache " + StringUtils.getSpaceMessage(_bytes) + "/" + StringUtils.getSpaceMessage(_maxBytes)
+             + ", entries=" + _entries.size() + ", hits=" + _hits.get() + ", misses=" + _misses.get() + ", evictions="
+             + _evictions.get() + "]";
+   }
+
+}
@@ -0,0 +1,73 @@
+
+
+package com.glob3mobile.tools.tiling.pyramid;
+
+
+/**
+ * An inclusive, rectangular range of tiles of a level. Rows follow the Tile convention (row 0 at the south).
+ */
+public class TileRange {
+   public final int _level;
+   public final int _minColumn;
+   public final int _maxColumn;
+   public final int _minRow;
+   public final int _maxRow;
+
+
+   public TileRange(final int level,
+                    final int minColumn,
+                    final int maxColumn,
+                    final int minRow,
+                    final int maxRow) {
+      _level = level;
+      _minColumn = minColumn;
+      _maxColumn = maxColumn;
+      _minRow = minRow;
+      _maxRow = maxRow;
+   }
+
+
+   public boolean isEmpty() {
+      return (_minColumn > _maxColumn) || (_minRow > _maxRow);
+   }
+
+
+   public int getColumnsCount() {
+      return isEmpty() ? 0 : (_maxColumn - _minColumn) + 1;
+   }
+
+
+   public int getRowsCount() {
+      return isEmpty() ? 0 : (_maxRow - _minRow) + 1;
+   }
+
+
+   public long getTilesCount() {
+      return (long) getColumnsCount() * getRowsCount();
+   }
+
+
+   public boolean contains(final int column,
+                           final int row) {
+      return (column >= _minColumn) && (column <= _maxColumn) && (row >= _minRow) && (row <= _maxRow);
+   }
+
+
+   @Override
+   public String toString() {
+      final StringBuilder builder = new StringBuilder();
+      builder.append("[TileRange level=");
+      builder.append(_level);
+      builder.append(", column=");
+      builder.append(_minColumn);
+      builder.append("/");
+      builder.append(_maxColumn);
+      builder.append(", row=");
+      builder.append(_minRow);
+      builder.append("/");
+      builder.append(_maxRow);
+      builder.append("]");
+      return builder.toString();
+   }
+
+}
@@ -0,0 +1,86 @@
+
+
+package com.glob3mobile.tools.tiling.pyramid;
+
+import java.io.File;
+
+
+/**
+ * Layout of the manifest written by the Tiler next to the tiles: one append-only binary file per level,
+ * manifest/&lt;level&gt;.manifest, with a header (magic, version, level) followed by one record (int column, int row,
+ * byte state) per processed tile. Rows follow the tiles files convention (row 0 at the north).
+ * <p>
+ * The state of a written tile tells its opacity (OPAQUE or PARTIAL), so the readers of the tiles (the TilesMixer) can
+ * decide how to merge them without decoding their pixels. The manifests of older runs record WRITTEN, an unknown
+ * opacity.
+ * <p>
+ * Tile records are appended only once the tile file is in place, and a level whose tiles were all recorded ends with a
+ * LEVEL_COMPLETED record (column and row -1), so an interrupted run can be resumed from its manifest.
+ */
+public class TilesManifest {
+   private TilesManifest() {
+   }
+
+
+   public static final int  MAGIC           = 0x47334D4D; // "G3MM"
+   public static final int  VERSION         = 1;
+
+   /**
+    * The tile has no visible pixels and no file was written.
+    */
+   public static final byte EMPTY           = 0;
+   /**
+    * The tile file was written, its opacity is unknown.
+    */
+   public static final byte WRITTEN         = 1;
+   /**
+    * Not a tile, every tile of the level was recorded.
+    */
+   public static final byte LEVEL_COMPLETED = 2;
+   /**
+    * The tile file was written, every pixel is opaque.
+    */
+   public static final byte OPAQUE          = 3;
+   /**
+    * The tile file was written, some pixels are (partially) transparent.
+    */
+   public static final byte PARTIAL         = 4;
+
+
+   /**
+    * Answers true if the state is one of the states of a written tile file.
+    */
+   public static boolean isWritten(final byte state) {
+      return (state == WRITTEN) || (state == OPAQUE) || (state == PARTIAL);
+   }
+
+
+   public static File getDirectory(final File tilesDirectory) {
+      return new File(tilesDirectory, "manifest");
+   }
+
+
+   public static File getFile(final File tilesDirectory,
+                              final int level) {
+      return new File(getDirectory(tilesDirectory), level + ".manifest");
+   }
+
+
+   public static String getStateName(final byte state) {
+      switch (state) {
+         case EMPTY:
+            return "EMPTY";
+         case WRITTEN:
+            return "WRITTEN";
+         case LEVEL_COMPLETED:
+            return "LEVEL_COMPLETED";
+         case OPAQUE:
+            return "OPAQUE";
+         case PARTIAL:
+            return "PARTIAL";
+         default:
+            return "UNKNOWN(" + state + ")";
+      }
+   }
+
+}
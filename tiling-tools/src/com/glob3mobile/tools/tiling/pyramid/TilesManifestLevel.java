@@ -0,0 +1,256 @@
+
+
+package com.glob3mobile.tools.tiling.pyramid;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * The tiles recorded by the manifest of a level, as left by a previous (maybe interrupted) run of the Tiler. Rows follow
+ * the tiles files convention (row 0 at the north).
+ */
+public class TilesManifestLevel {
+
+   private static final int HEADER_SIZE = 12;
+   private static final int RECORD_SIZE = 9;
+
+
+   /**
+    * Reads the manifest of the given level. A missing manifest, or one without a complete header, reads as a level
+    * without tiles. An incomplete trailing record (the run died while appending it) is ignored.
+    */
+   public static TilesManifestLevel read(final File tilesDirectory,
+                                         final int level) throws IOException {
+      final File file = TilesManifest.getFile(tilesDirectory, level);
+      if (!file.exists() || (file.length() < HEADER_SIZE)) {
+         return new TilesManifestLevel(level, new long[0], 0, new long[0], 0, new long[0], 0, new long[0], 0, false, 0, 0);
+      }
+
+      final long lastModified = file.lastModified();
+
+      try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+         final int magic = input.readInt();
+         final int version = input.readInt();
+         final int fileLevel = input.readInt();
+         if ((magic != TilesManifest.MAGIC) || (version != TilesManifest.VERSION) || (fileLevel != level)) {
+            throw new IOException("Invalid manifest \"" + file.getAbsolutePath() + "\"");
+         }
+
+         final long recordsCount = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+         long[] written = new long[16];
+         int writtenCount = 0;
+         long[] empty = new long[16];
+         int emptyCount = 0;
+         long[] opaque = new long[16];
+         int opaqueCount = 0;
+         long[] partial = new long[16];
+         int partialCount = 0;
+         boolean completed = false;
+         for (long i = 0; i < recordsCount; i++) {
+            final int column;
+            final int row;
+            final byte state;
+            try {
+               column = input.readInt();
+               row = input.readInt();
+               state = input.readByte();
+            }
+            catch (final EOFException e) {
+               break;
+            }
+
+            if (state == TilesManifest.LEVEL_COMPLETED) {
+               completed = true;
+            }
+            else if (TilesManifest.isWritten(state)) {
+               final long key = toKey(column, row);
+               written = append(written, writtenCount++, key);
+               if (state == TilesManifest.OPAQUE) {
+                  opaque = append(opaque, opaqueCount++, key);
+               }
+               else if (state == TilesManifest.PARTIAL) {
+                  partial = append(partial, partialCount++, key);
+               }
+            }
+            else {
+               empty = append(empty, emptyCount++, toKey(column, row));
+            }
+         }
+         Arrays.sort(written, 0, writtenCount);
+         Arrays.sort(empty, 0, emptyCount);
+         Arrays.sort(opaque, 0, opaqueCount);
+         Arrays.sort(partial, 0, partialCount);
+
+         final long validLength = HEADER_SIZE + (recordsCount * RECORD_SIZE);
+         return new TilesManifestLevel(level, written, writtenCount, empty, emptyCount, opaque, opaqueCount, partial,
+                  partialCount, completed, validLength, lastModified);
+      }
+   }
+
+
+   private static long[] append(final long[] keys,
+                                final int count,
+                                final long key) {
+      final long[] result = (count == keys.length) ? Arrays.copyOf(keys, keys.length * 2) : keys;
+      result[count] = key;
+      return result;
+   }
+
+
+   private static long toKey(final int column,
+                             final int row) {
+      return (((long) column) << 32) | (row & 0xFFFFFFFFL);
+   }
+
+
+   private final int     _level;
+   private final long[]  _written;
+   private final int     _writtenCount;
+   private final long[]  _empty;
+   private final int     _emptyCount;
+   private final long[]  _opaque;
+   private final int     _opaqueCount;
+   private final long[]  _partial;
+   private final int     _partialCount;
+   private final boolean _completed;
+   private final long    _validLength;
+   private final long    _lastModified;
+
+
+   private TilesManifestLevel(final int level,
+                              final long[] written,
+                              final int writtenCount,
+                              final long[] empty,
+                              final int emptyCount,
+                              final long[] opaque,
+                              final int opaqueCount,
+                              final long[] partial,
+                              final int partialCount,
+                              final boolean completed,
+                              final long validLength,
+                              final long lastModified) {
+      _level = level;
+      _written = written;
+      _writtenCount = writtenCount;
+      _empty = empty;
+      _emptyCount = emptyCount;
+      _opaque = opaque;
+      _opaqueCount = opaqueCount;
+      _partial = partial;
+      _partialCount = partialCount;
+      _completed = completed;
+      _validLength = validLength;
+      _lastModified = lastModified;
+   }
+
+
+   public int getLevel() {
+      return _level;
+   }
+
+
+   /**
+    * Answers true if the level was marked as completed, every tile of the level was recorded.
+    */
+   public boolean isCompleted() {
+      return _completed;
+   }
+
+
+   /**
+    * Length of the manifest file up to its last complete record, 0 if the file has to be written from scratch.
+    */
+   public long getValidLength() {
+      return _validLength;
+   }
+
+
+   /**
+    * Answers the modification time of the manifest file when it was read, 0 if there is no manifest.
+    */
+   public long getLastModified() {
+      return _lastModified;
+   }
+
+
+   /**
+    * Number of records of written tiles, sorted by column and row (see getWrittenColumn() and getWrittenRow()).
+    */
+   public int getWrittenCount() {
+      return _writtenCount;
+   }
+
+
+   public int getWrittenColumn(final int index) {
+      return (int) (_written[index] >>> 32);
+   }
+
+
+   public int getWrittenRow(final int index) {
+      return (int) _written[index];
+   }
+
+
+   /**
+    * Answers the recorded state of the given tile (TilesManifest.OPAQUE, PARTIAL, WRITTEN or EMPTY), or -1 if the tile
+    * wasn't recorded.
+    */
+   public byte getState(final int column,
+                        final int row) {
+      final long key = toKey(column, row);
+      if (Arrays.binarySearch(_written, 0, _writtenCount, key) >= 0) {
+         if (Arrays.binarySearch(_opaque, 0, _opaqueCount, key) >= 0) {
+            return TilesManifest.OPAQUE;
+         }
+         if (Arrays.binarySearch(_partial, 0, _partialCount, key) >= 0) {
+            return TilesManifest.PARTIAL;
+         }
+         return TilesManifest.WRITTEN;
+      }
+      if (Arrays.binarySearch(_empty, 0, _emptyCount, key) >= 0) {
+         return TilesManifest.EMPTY;
+      }
+      return -1;
+   }
+
+
+   /**
+    * Number of tiles recorded (written or empty).
+    */
+   public long getTilesCount() {
+      return (long) _writtenCount + _emptyCount;
+   }
+
+
+   public boolean isRecorded(final int column,
+                             final int row) {
+      return getState(column, row) != -1;
+   }
+
+
+   @Override
+   public String toString() {
+      final StringBuilder builder = new StringBuilder();
+      builder.append("[TilesManifestLevel level=");
+      builder.append(_level);
+      builder.append(", written=");
+      builder.append(_writtenCount);
+      builder.append(", opaque=");
+      builder.append(_opaqueCount);
+      builder.append(", partial=");
+      builder.append(_partialCount);
+      builder.append(", empty=");
+      builder.append(_emptyCount);
+      builder.append(", completed=");
+      builder.append(_completed);
+      builder.append("]");
+      return builder.toString();
+   }
+
+}
@@ -0,0 +1,151 @@
+
+
+package com.glob3mobile.tools.tiling.pyramid;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.glob3mobile.utils.IOUtils;
+
+
+/**
+ * Appends the records of the TilesManifest of a tiles directory. Safe to use from concurrent threads.
+ * <p>
+ * The manifests of the levels are truncated when first written, unless the level is resumed, then the new records are
+ * appended to the ones of the previous run.
+ */
+public class TilesManifestWriter {
+   private final File                             _tilesDirectory;
+   private final Map<Integer, DataOutputStream>   _outputs = new TreeMap<Integer, DataOutputStream>();
+   private final Map<Integer, long[]>             _counts  = new TreeMap<Integer, long[]>();
+   private final Map<Integer, TilesManifestLevel> _resumed = new TreeMap<Integer, TilesManifestLevel>();
+   private boolean                                _closed  = false;
+
+
+   public TilesManifestWriter(final File tilesDirectory) throws IOException {
+      _tilesDirectory = tilesDirectory;
+      IOUtils.ensureDirectory(TilesManifest.getDirectory(tilesDirectory));
+   }
+
+
+   /**
+    * The records of the given level will be appended to the ones read from the previous run, dropping any incomplete
+    * trailing record.
+    */
+   public synchronized void resume(final TilesManifestLevel previous) throws IOException {
+      if (_outputs.containsKey(previous.getLevel())) {
+         throw new IOException("Level " + previous.getLevel() + " already written");
+      }
+      _resumed.put(previous.getLevel(), previous);
+   }
+
+
+   /**
+    * @param row
+    *           the row of the tile, with the tiles files convention (row 0 at the north)
+    */
+   public synchronized void record(final int level,
+                                   final int column,
+                                   final int row,
+                                   final byte state) throws IOException {
+      if (_closed) {
+         throw new IOException("Manifest of \"" + _tilesDirectory + "\" already closed");
+      }
+      final DataOutputStream output = getOutput(level);
+      output.writeInt(column);
+      output.writeInt(row);
+      output.writeByte(state);
+      _counts.get(level)[state]++;
+   }
+
+
+   /**
+    * Records that every tile of the given level was recorded, and flushes the manifest of the level.
+    */
+   public synchronized void recordLevelCompleted(final int level) throws IOException {
+      if (_closed) {
+         throw new IOException("Manifest of \"" + _tilesDirectory + "\" already closed");
+      }
+      final DataOutputStream output = getOutput(level);
+      output.writeInt(-1);
+      output.writeInt(-1);
+      output.writeByte(TilesManifest.LEVEL_COMPLETED);
+      output.flush();
+   }
+
+
+   private DataOutputStream getOutput(final int level) throws IOException {
+      DataOutputStream output = _outputs.get(level);
+      if (output == null) {
+         final File file = TilesManifest.getFile(_tilesDirectory, level);
+         final TilesManifestLevel previous = _resumed.get(level);
+         if ((previous == null) || (previous.getValidLength() == 0)) {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            output.writeInt(TilesManifest.MAGIC);
+            output.writeInt(TilesManifest.VERSION);
+            output.writeInt(level);
+         }
+         else {
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+               raf.setLength(previous.getValidLength());
+            }
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+         }
+         _outputs.put(level, output);
+         _counts.put(level, new long[TilesManifest.PARTIAL + 1]);
+      }
+      return output;
+   }
+
+
+   public synchronized void close() throws IOException {
+      if (_closed) {
+         return;
+      }
+      _closed = true;
+      IOException exception = null;
+      for (final DataOutputStream output : _outputs.values()) {
+         try {
+            output.close();
+         }
+         catch (final IOException e) {
+            if (exception == null) {
+               exception = e;
+            }
+         }
+      }
+      if (exception != null) {
+         throw exception;
+      }
+   }
+
+
+   @Override
+   public synchronized String toString() {
+      final StringBuilder builder = new StringBuilder();
+      builder.append("[TilesManifestWriter");
+      for (final Map.Entry<Integer, long[]> entry : _counts.entrySet()) {
+         final long[] counts = entry.getValue();
+         builder.append(" level ");
+         builder.append(entry.getKey());
+         builder.append(": opaque=");
+         builder.append(counts[TilesManifest.OPAQUE]);
+         builder.append(", partial=");
+         builder.append(counts[TilesManifest.PARTIAL]);
+         builder.append(", written=");
+         builder.append(counts[TilesManifest.WRITTEN]);
+         builder.append(", empty=");
+         builder.append(counts[TilesManifest.EMPTY]);
+         builder.append(";");
+      }
+      builder.append("]");
+      return builder.toString();
+   }
+
+}
@@ -8,7 +8,6 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
-import org.geotools.coverage.grid.GridCoverage2D;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.glob3mobile.geo.GEOGeodetic;
@@ -131,6 +130,50 @@ public class WGS84Pyramid
    }
 
 
+   @Override
+   public int getNumberOfColumns(final int level) {
+      return _topSectorSplitsByLongitude * (int) Math.pow(2, level);
+   }
+
+
+   @Override
+   public TileRange getTileRange(final GEOSector sector,
+                                 final int level) {
+      final int numColumns = getNumberOfColumns(level);
+      final int numRows = getNumberOfRows(level);
+
+      final double fromLatitude = _topSector._lower._latitude;
+      final double fromLongitude = _topSector._lower._longitude;
+      final double tileHeight = _topSector._delta._latitude / numRows;
+      final double tileWidth = _topSector._delta._longitude / numColumns;
+
+      final int[] columns = touchingIndices( //
+               (sector._lower._longitude - fromLongitude) / tileWidth, //
+               (sector._upper._longitude - fromLongitude) / tileWidth, //
+               numColumns);
+      final int[] rows = touchingIndices( //
+               (sector._lower._latitude - fromLatitude) / tileHeight, //
+               (sector._upper._latitude - fromLatitude) / tileHeight, //
+               numRows);
+      return new TileRange(level, columns[0], columns[1], rows[0], rows[1]);
+   }
+
+
+   @Override
+   public GEOSector getTileSector(final int level,
+                                  final int column,
+                                  final int row) {
+      final double tileHeight = _topSector._delta._latitude / getNumberOfRows(level);
+      final double tileWidth = _topSector._delta._longitude / getNumberOfColumns(level);
+
+      final double lowerLatitude = (tileHeight * row) + _topSector._lower._latitude;
+      final double lowerLongitude = (tileWidth * column) + _topSector._lower._longitude;
+      return new GEOSector( //
+               new GEOGeodetic(lowerLatitude, lowerLongitude), //
+               new GEOGeodetic(lowerLatitude + tileHeight, lowerLongitude + tileWidth));
+   }
+
+
    @Override
    public int getTileImageWidth() {
       return _tileImageWidth;
@@ -173,8 +216,7 @@ public class WGS84Pyramid
 
 
    @Override
-   public void checkCRS(final GridCoverage2D coverage) {
-      final CoordinateReferenceSystem crs = coverage.getCoordinateReferenceSystem();
+   public void checkCRS(final CoordinateReferenceSystem crs) {
       if (!crs.getName().getCode().equalsIgnoreCase("WGS 84")) {
          throw new RuntimeException("Invalid CRS\n" + crs);
       }
@@ -203,4 +245,21 @@ public class WGS84Pyramid
       return new GEOSector(lower, upper);
    }
 
+
+   @Override
+   public int getEPSGCode() {
+      return 4326;
+   }
+
+
+   @Override
+   public double[] getProjectedBounds() {
+      return new double[] {
+         _topSector._lower._longitude,
+         _topSector._lower._latitude,
+         _topSector._upper._longitude,
+         _topSector._upper._latitude
+      };
+   }
+
 }
@@ -16,9 +16,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import org.geotools.coverage.grid.GridCoverage2D;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.glob3mobile.geo.GEOGeodetic;
 import com.glob3mobile.geo.GEOSector;
 
 
@@ -28,6 +28,7 @@ public class WebMercatorPyramid
 
    private static final double UPPER_LIMIT_DEGREES = 85.0511287798;
    private static final double LOWER_LIMIT_DEGREES = -85.0511287798;
+   private static final double HALF_EXTENT_METERS  = 20037508.342789244;
 
 
    public static Pyramid createDefault() {
@@ -87,6 +88,63 @@ public class WebMercatorPyramid
    }
 
 
+   @Override
+   public int getNumberOfColumns(final int level) {
+      return (int) pow(2, level);
+   }
+
+
+   @Override
+   public TileRange getTileRange(final GEOSector sector,
+                                 final int level) {
+      final int numColumns = getNumberOfColumns(level);
+      final int numRows = getNumberOfRows(level);
+
+      final double tileWidth = 360.0 / numColumns;
+      final int[] columns = touchingIndices( //
+               (sector._lower._longitude + 180) / tileWidth, //
+               (sector._upper._longitude + 180) / tileWidth, //
+               numColumns);
+      // getMercatorV() grows southward, rows grow northward
+      final int[] rows = touchingIndices( //
+               (1 - getMercatorV(sector._lower._latitude)) * numRows, //
+               (1 - getMercatorV(sector._upper._latitude)) * numRows, //
+               numRows);
+      return new TileRange(level, columns[0], columns[1], rows[0], rows[1]);
+   }
+
+
+   @Override
+   public GEOSector getTileSector(final int level,
+                                  final int column,
+                                  final int row) {
+      final int numColumns = getNumberOfColumns(level);
+      final int numRows = getNumberOfRows(level);
+
+      final double tileWidth = 360.0 / numColumns;
+      final double lowerLongitude = (tileWidth * column) - 180;
+      return new GEOSector( //
+               new GEOGeodetic(rowBoundaryLatitude(row, numRows), lowerLongitude), //
+               new GEOGeodetic(rowBoundaryLatitude(row + 1, numRows), lowerLongitude + tileWidth));
+   }
+
+
+   /**
+    * Latitude of the southern edge of the given row. The outermost rows extend to the poles, as the top tile covers the
+    * full sphere.
+    */
+   private static double rowBoundaryLatitude(final int row,
+                                             final int numRows) {
+      if (row <= 0) {
+         return -90;
+      }
+      if (row >= numRows) {
+         return 90;
+      }
+      return toLatitudeDegrees(1 - ((double) row / numRows));
+   }
+
+
    @Override
    public List<Tile> createChildren(final GEOSector sector,
                                     final Tile tile) {
@@ -126,15 +184,39 @@ public class WebMercatorPyramid
 
 
    @Override
-   public void checkCRS(final GridCoverage2D coverage) {
-      final CoordinateReferenceSystem crs = coverage.getCoordinateReferenceSystem();
-
-      if (!crs.getName().getCode().equalsIgnoreCase("WGS 84 / Pseudo-Mercator")) {
+   public void checkCRS(final CoordinateReferenceSystem crs) {
+      if (!crs.getName().getCode().equalsIgnoreCase("WGS 84 / Pseudo-Mercator") && !needsWarp(crs)) {
          throw new RuntimeException("Invalid CRS\n" + crs);
       }
    }
 
 
+   /**
+    * Geographic (EPSG:4326) images are warped while tiling, without an external gdalwarp to EPSG:3857.
+    */
+   @Override
+   public boolean needsWarp(final CoordinateReferenceSystem crs) {
+      return crs.getName().getCode().equalsIgnoreCase("WGS 84");
+   }
+
+
+   @Override
+   public double[] getPixelsLatitudes(final int level,
+                                      final int row) {
+      final int numRows = getNumberOfRows(level);
+      final int tileImageHeight = getTileImageHeight();
+      final double pixelsV = (double) numRows * tileImageHeight;
+      // v of the top edge of the tile, rows grow northward
+      final double topV = (double) (numRows - row - 1) * tileImageHeight;
+
+      final double[] result = new double[tileImageHeight];
+      for (int y = 0; y < tileImageHeight; y++) {
+         result[y] = toLatitudeDegrees((topV + y + 0.5) / pixelsV);
+      }
+      return result;
+   }
+
+
    @Override
    public Point2D resolutionForLevel(final int level) {
       final int splitsByLatitude = (int) Math.pow(2, level);
@@ -158,6 +240,23 @@ public class WebMercatorPyramid
    }
 
 
+   @Override
+   public int getEPSGCode() {
+      return 3857;
+   }
+
+
+   @Override
+   public double[] getProjectedBounds() {
+      return new double[] {
+         -HALF_EXTENT_METERS,
+         -HALF_EXTENT_METERS,
+         HALF_EXTENT_METERS,
+         HALF_EXTENT_METERS
+      };
+   }
+
+
    public Tile getTile(final int level,
                        final int column,
                        final int row) {
@@ -0,0 +1,52 @@
+
+
+package com.glob3mobile.tools.tiling.pyramid;
+
+
+/**
+ * Morton codes of the tiles of a level: the bits of the column and the row interleaved, so sorting the codes walks the
+ * tiles quadtree by quadtree (the tiles sharing an ancestor are contiguous).
+ */
+class ZOrder {
+   private ZOrder() {
+   }
+
+
+   static long encode(final int column,
+                      final int row) {
+      return spreadBits(column) | (spreadBits(row) << 1);
+   }
+
+
+   static int getColumn(final long code) {
+      return compactBits(code);
+   }
+
+
+   static int getRow(final long code) {
+      return compactBits(code >>> 1);
+   }
+
+
+   private static long spreadBits(final int value) {
+      long x = value & 0xFFFFFFFFL;
+      x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+      x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+      x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+      x = (x | (x << 2)) & 0x3333333333333333L;
+      x = (x | (x << 1)) & 0x5555555555555555L;
+      return x;
+   }
+
+
+   private static int compactBits(final long code) {
+      long x = code & 0x5555555555555555L;
+      x = (x | (x >>> 1)) & 0x3333333333333333L;
+      x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+      x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+      x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+      x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+      return (int) x;
+   }
+
+}
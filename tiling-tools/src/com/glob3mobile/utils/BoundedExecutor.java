@@ -0,0 +1,160 @@
+
+
+package com.glob3mobile.utils;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Runs tasks on an executor bounding the number of tasks in flight: execute() blocks the caller while the bound is
+ * reached. The first failure of any task is rethrown by the next execute() or by awaitCompletion().
+ */
+public class BoundedExecutor {
+
+   public interface Task {
+      void run() throws IOException;
+   }
+
+
+   private final Executor  _executor;
+   private final int       _maxInFlight;
+   private final Semaphore _permits;
+   private final Object    _lock    = new Object();
+   private int             _pending = 0;
+   private Throwable       _failure = null;
+
+
+   /**
+    * @param executor
+    *           the executor running the tasks, or null to run them in the calling thread
+    */
+   public BoundedExecutor(final Executor executor,
+                          final int maxInFlight) {
+      if (maxInFlight < 1) {
+         throw new IllegalArgumentException("maxInFlight must be positive");
+      }
+      _executor = executor;
+      _maxInFlight = maxInFlight;
+      _permits = new Semaphore(maxInFlight);
+   }
+
+
+   public void execute(final Task task) throws IOException {
+      checkFailure();
+
+      if (_executor == null) {
+         task.run();
+         return;
+      }
+
+      _permits.acquireUninterruptibly();
+      synchronized (_lock) {
+         _pending++;
+      }
+      try {
+         _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  task.run();
+               }
+               catch (final IOException | RuntimeException | Error e) {
+                  setFailure(e);
+               }
+               finally {
+                  taskDone();
+               }
+            }
+         });
+      }
+      catch (final RejectedExecutionException e) {
+         taskDone();
+         throw e;
+      }
+   }
+
+
+   private void setFailure(final Throwable e) {
+      synchronized (_lock) {
+         if (_failure == null) {
+            _failure = e;
+         }
+      }
+   }
+
+
+   private void taskDone() {
+      _permits.release();
+      synchronized (_lock) {
+         _pending--;
+         if (_pending == 0) {
+            _lock.notifyAll();
+         }
+      }
+   }
+
+
+   private void checkFailure() throws IOException {
+      final Throwable failure;
+      synchronized (_lock) {
+         failure = _failure;
+      }
+      if (failure == null) {
+         return;
+      }
+      if (failure instanceof IOException) {
+         throw new IOException(failure.getMessage(), failure);
+      }
+      if (failure instanceof Error) {
+         throw (Error) failure;
+      }
+      throw (RuntimeException) failure;
+   }
+
+
+   /**
+    * Blocks until every submitted task has finished.
+    */
+   public void awaitCompletion() throws IOException {
+      synchronized (_lock) {
+         while (_pending > 0) {
+            try {
+               _lock.wait();
+            }
+            catch (final InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while waiting for tasks", e);
+            }
+         }
+      }
+      checkFailure();
+   }
+
+
+   /**
+    * Blocks until every submitted task has finished after the caller failed with the given failure, attaching to it
+    * (suppressed) the failure of the tasks, unless it's the one the failure already comes from.
+    */
+   public void awaitCompletion(final Throwable failure) {
+      try {
+         awaitCompletion();
+      }
+      catch (final IOException | RuntimeException | Error e) {
+         // the failure of a task is rethrown wrapped in a new IOException by every execute() and awaitCompletion()
+         final boolean sameTaskFailure = (e.getCause() != null) && (e.getCause() == failure.getCause());
+         if ((e != failure) && (e != failure.getCause()) && !sameTaskFailure) {
+            failure.addSuppressed(e);
+         }
+      }
+   }
+
+
+   public int getMaxInFlight() {
+      return _maxInFlight;
+   }
+
+
+}
@@ -0,0 +1,65 @@
+
+
+package com.glob3mobile.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+public class ConcurrencyUtils {
+   private ConcurrencyUtils() {
+   }
+
+
+   /**
+    * Runs the tasks on the executor (or in the calling thread if the executor is null) and returns their results in the
+    * same order, rethrowing the first failure.
+    */
+   public static <T> List<T> invokeAll(final ExecutorService executor,
+                                       final List<? extends Callable<T>> tasks) throws IOException {
+      final List<T> results = new ArrayList<T>(tasks.size());
+      try {
+         if ((executor == null) || (tasks.size() <= 1)) {
+            for (final Callable<T> task : tasks) {
+               results.add(task.call());
+            }
+         }
+         else {
+            for (final Future<T> future : executor.invokeAll(tasks)) {
+               results.add(future.get());
+            }
+         }
+      }
+      catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted", e);
+      }
+      catch (final ExecutionException e) {
+         final Throwable cause = e.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         }
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         if (cause instanceof Error) {
+            throw (Error) cause;
+         }
+         throw new IOException(cause);
+      }
+      catch (final IOException | RuntimeException e) {
+         throw e;
+      }
+      catch (final Exception e) {
+         throw new IOException(e);
+      }
+      return results;
+   }
+
+
+}
@@ -4,8 +4,11 @@ package com.glob3mobile.utils;
 
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Iterator;
 
 import javax.imageio.IIOImage;
@@ -24,18 +27,56 @@ public class IOUtils {
                                 final File output,
                                 final float quality) throws IOException {
       try (final ImageOutputStream ios = ImageIO.createImageOutputStream(output)) {
-         final Iterator<ImageWriter> iter = ImageIO.getImageWritersByFormatName("jpeg");
-         final ImageWriter writer = iter.next();
-         final ImageWriteParam iwp = writer.getDefaultWriteParam();
-         iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-         iwp.setCompressionQuality(quality);
-         writer.setOutput(ios);
-         writer.write(null, new IIOImage(image, null, null), iwp);
-         writer.dispose();
+         writeJPEG(image, ios, quality);
       }
    }
 
 
+   private static void writeJPEG(final BufferedImage image,
+                                 final ImageOutputStream ios,
+                                 final float quality) throws IOException {
+      final Iterator<ImageWriter> iter = ImageIO.getImageWritersByFormatName("jpeg");
+      final ImageWriter writer = iter.next();
+      final ImageWriteParam iwp = writer.getDefaultWriteParam();
+      iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      iwp.setCompressionQuality(quality);
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, null), iwp);
+      writer.dispose();
+   }
+
+
+   public static byte[] encodeJPEG(final BufferedImage image,
+                                   final float quality) throws IOException {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try (final ImageOutputStream ios = ImageIO.createImageOutputStream(output)) {
+         writeJPEG(image, ios, quality);
+      }
+      return output.toByteArray();
+   }
+
+
+   public static byte[] encodePNG(final BufferedImage image) throws IOException {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      if (!ImageIO.write(image, "png", output)) {
+         throw new IOException("No PNG writer");
+      }
+      return output.toByteArray();
+   }
+
+
+   /**
+    * Writes the data to a temporary file next to the output, and then renames it to the output, so the output is either
+    * missing or complete, never half written.
+    */
+   public static void writeAtomically(final byte[] data,
+                                      final File output) throws IOException {
+      final File temporary = new File(output.getParentFile(), output.getName() + ".tmp");
+      Files.write(temporary.toPath(), data);
+      Files.move(temporary.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+   }
+
+
    public static void ensureDirectory(final File directory) throws IOException {
       if (directory.exists()) {
          if (!directory.isDirectory()) {
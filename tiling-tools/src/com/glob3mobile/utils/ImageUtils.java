@@ -0,0 +1,201 @@
+
+
+package com.glob3mobile.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+public class ImageUtils {
+   private ImageUtils() {
+   }
+
+
+   private static int[] getARGB(final BufferedImage image,
+                                final int width,
+                                final int height) {
+      if (image == null) {
+         return null;
+      }
+      if ((image.getWidth() != width) || (image.getHeight() != height)) {
+         throw new IllegalArgumentException("Invalid image size " + image.getWidth() + "x" + image.getHeight() + ", expected "
+                                            + width + "x" + height);
+      }
+      return image.getRGB(0, 0, width, height, null, 0, width);
+   }
+
+
+   /**
+    * Answers a digest (MD5) of the size and the ARGB pixels of the image, equal for images looking the same whatever their
+    * types.
+    */
+   public static byte[] digestPixels(final BufferedImage image) {
+      final MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("MD5");
+      }
+      catch (final NoSuchAlgorithmException e) {
+         throw new RuntimeException(e);
+      }
+
+      final int width = image.getWidth();
+      final int height = image.getHeight();
+      final ByteBuffer buffer = ByteBuffer.allocate(Math.max(width, 2) * 4);
+      buffer.putInt(width).putInt(height);
+      digest.update(buffer.array(), 0, 8);
+
+      final int[] row = new int[width];
+      for (int y = 0; y < height; y++) {
+         image.getRGB(0, y, width, 1, row, 0, width);
+         buffer.clear();
+         buffer.asIntBuffer().put(row);
+         digest.update(buffer.array(), 0, width * 4);
+      }
+      return digest.digest();
+   }
+
+
+   /**
+    * Answers true if any pixel of the given rectangle (clipped to the image) has a non-zero alpha. Images without alpha
+    * are fully visible.
+    */
+   public static boolean hasVisiblePixels(final BufferedImage image,
+                                          final int x,
+                                          final int y,
+                                          final int width,
+                                          final int height) {
+      final int fromX = Math.max(x, 0);
+      final int fromY = Math.max(y, 0);
+      final int toX = Math.min(x + width, image.getWidth());
+      final int toY = Math.min(y + height, image.getHeight());
+      if ((fromX >= toX) || (fromY >= toY)) {
+         return false;
+      }
+
+      final WritableRaster alpha = image.getAlphaRaster();
+      if (alpha == null) {
+         return true;
+      }
+
+      final int rowWidth = toX - fromX;
+      final int[] samples = new int[rowWidth];
+      for (int row = fromY; row < toY; row++) {
+         alpha.getSamples(fromX, row, rowWidth, 1, 0, samples);
+         for (final int sample : samples) {
+            if (sample != 0) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+
+   /**
+    * Answers true if every pixel of the image has the max alpha. Images without alpha are fully opaque.
+    */
+   public static boolean isFullOpaque(final BufferedImage image) {
+      if (!image.getColorModel().hasAlpha()) {
+         return true;
+      }
+
+      final int width = image.getWidth();
+      final int height = image.getHeight();
+      final int[] samples = new int[width];
+      final WritableRaster alpha = image.getAlphaRaster();
+      if (alpha == null) {
+         // indexed images, the alpha comes from the palette
+         for (int row = 0; row < height; row++) {
+            image.getRGB(0, row, width, 1, samples, 0, width);
+            for (final int argb : samples) {
+               if ((argb >>> 24) != 255) {
+                  return false;
+               }
+            }
+         }
+         return true;
+      }
+
+      final int opaque = (1 << alpha.getSampleModel().getSampleSize(0)) - 1;
+      for (int row = 0; row < height; row++) {
+         alpha.getSamples(0, row, width, 1, 0, samples);
+         for (final int sample : samples) {
+            if (sample != opaque) {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+
+   /**
+    * Reduces the 2x2 mosaic of the given images (each one of width x height, null meaning fully transparent) to a single
+    * image of width x height, averaging every 2x2 block of pixels weighted by their alpha.
+    */
+   public static BufferedImage reduce2x2(final BufferedImage topLeft,
+                                         final BufferedImage topRight,
+                                         final BufferedImage bottomLeft,
+                                         final BufferedImage bottomRight,
+                                         final int width,
+                                         final int height) {
+      final int[][] quadrants = new int[][] {
+         getARGB(topLeft, width, height),
+         getARGB(topRight, width, height),
+         getARGB(bottomLeft, width, height),
+         getARGB(bottomRight, width, height)
+      };
+
+      final int[] result = new int[width * height];
+      for (int y = 0; y < height; y++) {
+         final int mosaicY = 2 * y;
+         for (int x = 0; x < width; x++) {
+            final int mosaicX = 2 * x;
+
+            int sumA = 0;
+            int sumR = 0;
+            int sumG = 0;
+            int sumB = 0;
+            for (int dy = 0; dy < 2; dy++) {
+               final int my = mosaicY + dy;
+               final int quadrantY = (my < height) ? 0 : 2;
+               final int childY = (my < height) ? my : my - height;
+               for (int dx = 0; dx < 2; dx++) {
+                  final int mx = mosaicX + dx;
+                  final int quadrant = quadrantY + ((mx < width) ? 0 : 1);
+                  final int[] pixels = quadrants[quadrant];
+                  if (pixels != null) {
+                     final int childX = (mx < width) ? mx : mx - width;
+                     final int argb = pixels[(childY * width) + childX];
+                     final int a = (argb >>> 24);
+                     if (a != 0) {
+                        sumA += a;
+                        sumR += ((argb >> 16) & 0xff) * a;
+                        sumG += ((argb >> 8) & 0xff) * a;
+                        sumB += (argb & 0xff) * a;
+                     }
+                  }
+               }
+            }
+
+            if (sumA != 0) {
+               final int halfA = sumA / 2;
+               final int a = (sumA + 2) / 4;
+               final int r = (sumR + halfA) / sumA;
+               final int g = (sumG + halfA) / sumA;
+               final int b = (sumB + halfA) / sumA;
+               result[(y * width) + x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+         }
+      }
+
+      final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+      image.setRGB(0, 0, width, height, result, 0, width);
+      return image;
+   }
+
+
+}
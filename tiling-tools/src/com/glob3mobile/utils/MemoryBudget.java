@@ -0,0 +1,84 @@
+
+
+package com.glob3mobile.utils;
+
+
+/**
+ * A budget of bytes shared by concurrent jobs. A job reserves its estimated size before starting and releases it when
+ * done; reservations block while the budget is exhausted. A job bigger than the whole budget is admitted only when no
+ * other job holds a reservation, so it runs alone instead of never running.
+ */
+public class MemoryBudget {
+
+   public static long defaultBudget() {
+      return (Runtime.getRuntime().maxMemory() / 4) * 3;
+   }
+
+
+   private final long _budget;
+   private long       _reserved = 0;
+
+
+   public MemoryBudget(final long budget) {
+      if (budget <= 0) {
+         throw new IllegalArgumentException("budget must be positive");
+      }
+      _budget = budget;
+   }
+
+
+   public class Reservation {
+      private final long _bytes;
+      private boolean    _released = false;
+
+
+      private Reservation(final long bytes) {
+         _bytes = bytes;
+      }
+
+
+      public long getBytes() {
+         return _bytes;
+      }
+
+
+      /**
+       * Gives the bytes back to the budget. Releasing more than once has no effect.
+       */
+      public void release() {
+         synchronized (MemoryBudget.this) {
+            if (!_released) {
+               _released = true;
+               _reserved -= _bytes;
+               MemoryBudget.this.notifyAll();
+            }
+         }
+      }
+   }
+
+
+   public synchronized Reservation reserve(final long bytes) throws InterruptedException {
+      while ((_reserved > 0) && ((_reserved + bytes) > _budget)) {
+         wait();
+      }
+      _reserved += bytes;
+      return new Reservation(bytes);
+   }
+
+
+   public synchronized long getReserved() {
+      return _reserved;
+   }
+
+
+   public long getBudget() {
+      return _budget;
+   }
+
+
+   @Override
+   public String toString() {
+      return "[MemoryBudget " + StringUtils.getSpaceMessage(getReserved()) + "/" + StringUtils.getSpaceMessage(_budget) + "]";
+   }
+
+}
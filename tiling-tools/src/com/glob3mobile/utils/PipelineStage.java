@@ -0,0 +1,265 @@
+
+
+package com.glob3mobile.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A stage of a pipeline: its own pool of threads handling the items of a bounded queue. put() blocks the producer while
+ * the queue is full, so a slow stage throttles the stages feeding it instead of piling items up in memory.
+ * <p>
+ * The first failure of a handler stops the stage: the queued items are dropped, and put() and finish() rethrow it.
+ * <p>
+ * The stage counts the time its threads spend handling items (busy), waiting for items (idle), and the time the producers
+ * spend blocked on the full queue, so the pools can be sized to keep every stage busy.
+ */
+public class PipelineStage<T> {
+
+   public interface Handler<T> {
+      void handle(T item) throws IOException;
+   }
+
+
+   private static final long      POLL_MS       = 100;
+
+   private final String           _name;
+   private final Handler<T>       _handler;
+   private final BlockingQueue<T> _queue;
+   private final int              _queueCapacity;
+   private final List<Thread>     _threads;
+   private final long             _started      = System.nanoTime();
+   private final AtomicLong       _processed    = new AtomicLong();
+   private final AtomicLong       _busyNanos    = new AtomicLong();
+   private final AtomicLong       _idleNanos    = new AtomicLong();
+   private final AtomicLong       _blockedNanos = new AtomicLong();
+   private volatile boolean       _finishing    = false;
+   private volatile Throwable     _failure      = null;
+
+
+   public PipelineStage(final String name,
+                        final int threads,
+                        final int queueCapacity,
+                        final Handler<T> handler) {
+      if (threads < 1) {
+         throw new IllegalArgumentException("threads must be positive");
+      }
+      _name = name;
+      _handler = handler;
+      _queue = new ArrayBlockingQueue<T>(queueCapacity);
+      _queueCapacity = queueCapacity;
+      _threads = new ArrayList<Thread>(threads);
+      for (int i = 0; i < threads; i++) {
+         final Thread thread = new Thread(this::run, name + "-" + (i + 1));
+         thread.setDaemon(true);
+         _threads.add(thread);
+      }
+      for (final Thread thread : _threads) {
+         thread.start();
+      }
+   }
+
+
+   private void run() {
+      while (_failure == null) {
+         final T item;
+         final long waitStart = System.nanoTime();
+         try {
+            item = _queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+         }
+         catch (final InterruptedException e) {
+            setFailure(e);
+            return;
+         }
+         final long handleStart = System.nanoTime();
+         _idleNanos.addAndGet(handleStart - waitStart);
+
+         if (item == null) {
+            if (_finishing && _queue.isEmpty()) {
+               return;
+            }
+            continue;
+         }
+
+         try {
+            _handler.handle(item);
+            _processed.incrementAndGet();
+         }
+         catch (final IOException | RuntimeException | Error e) {
+            setFailure(e);
+         }
+         finally {
+            _busyNanos.addAndGet(System.nanoTime() - handleStart);
+         }
+      }
+   }
+
+
+   private synchronized void setFailure(final Throwable e) {
+      if (_failure == null) {
+         _failure = e;
+      }
+      _queue.clear();
+   }
+
+
+   private void checkFailure() throws IOException {
+      final Throwable failure = _failure;
+      if (failure == null) {
+         return;
+      }
+      if (failure instanceof IOException) {
+         throw new IOException("Stage " + _name + " failed: " + failure.getMessage(), failure);
+      }
+      if (failure instanceof Error) {
+         throw (Error) failure;
+      }
+      if (failure instanceof RuntimeException) {
+         throw (RuntimeException) failure;
+      }
+      throw new IOException("Stage " + _name + " failed", failure);
+   }
+
+
+   /**
+    * Queues the item, blocking while the queue is full.
+    */
+   public void put(final T item) throws IOException {
+      checkFailure();
+      if (_finishing) {
+         throw new IllegalStateException("Stage " + _name + " is finishing");
+      }
+      final long start = System.nanoTime();
+      try {
+         // the stage could fail with the queue full
+         while (!_queue.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+         }
+      }
+      catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while queuing to stage " + _name, e);
+      }
+      finally {
+         _blockedNanos.addAndGet(System.nanoTime() - start);
+      }
+      checkFailure();
+   }
+
+
+   /**
+    * Waits until every queued item is handled and stops the threads. The producers must have finished.
+    */
+   public void finish() throws IOException {
+      _finishing = true;
+      for (final Thread thread : _threads) {
+         try {
+            thread.join();
+         }
+         catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing stage " + _name, e);
+         }
+      }
+      checkFailure();
+   }
+
+
+   /**
+    * Finishes the stages in order (every producer stage before its consumers), rethrowing the first failure once all of
+    * them are finished.
+    */
+   public static void finishAll(final PipelineStage<?>... stages) throws IOException {
+      IOException ioFailure = null;
+      RuntimeException runtimeFailure = null;
+      for (final PipelineStage<?> stage : stages) {
+         try {
+            stage.finish();
+         }
+         catch (final IOException e) {
+            if ((ioFailure == null) && (runtimeFailure == null)) {
+               ioFailure = e;
+            }
+         }
+         catch (final RuntimeException e) {
+            if ((ioFailure == null) && (runtimeFailure == null)) {
+               runtimeFailure = e;
+            }
+         }
+      }
+      if (ioFailure != null) {
+         throw ioFailure;
+      }
+      if (runtimeFailure != null) {
+         throw runtimeFailure;
+      }
+   }
+
+
+   public String getName() {
+      return _name;
+   }
+
+
+   public long getProcessedCount() {
+      return _processed.get();
+   }
+
+
+   public int getQueueSize() {
+      return _queue.size();
+   }
+
+
+   public int getQueueCapacity() {
+      return _queueCapacity;
+   }
+
+
+   /**
+    * Answers the time the threads of the stage spent waiting for items, added up.
+    */
+   public long getIdleMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(_idleNanos.get());
+   }
+
+
+   /**
+    * Answers the fraction of the time the threads of the stage spent handling items.
+    */
+   public double getUtilisation() {
+      final long busy = _busyNanos.get();
+      final long total = busy + _idleNanos.get();
+      return (total == 0) ? 0 : (double) busy / total;
+   }
+
+
+   /**
+    * Answers a one line summary of the queue depth and the idle time of the stage, to be logged while it runs.
+    */
+   public String getSummary() {
+      return _name + ": queue " + _queue.size() + "/" + _queueCapacity + ", idle "
+             + Math.round((1 - getUtilisation()) * 100) + "%";
+   }
+
+
+   @Override
+   public String toString() {
+      final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _started);
+      return "[Stage " + _name //
+             + " threads=" + _threads.size() //
+             + ", processed=" + _processed.get() //
+             + ", queued=" + _queue.size() //
+             + ", utilisation=" + Math.round(getUtilisation() * 100) + "%" //
+             + ", idle=" + StringUtils.getTimeMessage(getIdleMillis()) //
+             + ", producers blocked=" + StringUtils.getTimeMessage(TimeUnit.NANOSECONDS.toMillis(_blockedNanos.get())) //
+             + ", elapsed=" + StringUtils.getTimeMessage(elapsedMs) + "]";
+   }
+
+}
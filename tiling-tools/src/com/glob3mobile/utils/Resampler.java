@@ -0,0 +1,341 @@
+
+
+package com.glob3mobile.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Separable resampling of ARGB images working directly on the pixels arrays, with alpha-weighted (premultiplied)
+ * accumulation so transparent pixels don't bleed their color.
+ * <p>
+ * The output is produced in bands of rows, computed in parallel on a fork/join pool. Every band resamples horizontally
+ * only the source rows it needs and then vertically, so the working memory is a few rows per band, whatever the size of
+ * the image.
+ */
+public class Resampler {
+
+   public static Resampler createDefault() {
+      return new Resampler(ResamplingKernel.BICUBIC, ForkJoinPool.commonPool());
+   }
+
+
+   // the bands are small enough to balance the load, but not so small to waste the horizontal pass in their margins
+   private static final int MIN_BAND_PIXELS = 64 * 1024;
+   private static final int MIN_BAND_ROWS   = 16;
+
+   private final ResamplingKernel _kernel;
+   private final ForkJoinPool     _pool;
+
+
+   public Resampler(final ResamplingKernel kernel,
+                    final ForkJoinPool pool) {
+      if (kernel == null) {
+         throw new IllegalArgumentException("kernel can't be null");
+      }
+      _kernel = kernel;
+      _pool = pool;
+   }
+
+
+   public ResamplingKernel getKernel() {
+      return _kernel;
+   }
+
+
+   /**
+    * Resamples the whole image to the given size.
+    */
+   public BufferedImage resample(final BufferedImage source,
+                                 final int width,
+                                 final int height) {
+      return resample(source, 0, 0, source.getWidth(), source.getHeight(), width, height);
+   }
+
+
+   /**
+    * Resamples the given region of the source (in source pixels, not necessarily integral nor inside the source) to an
+    * image of the given size. The area outside the source is transparent.
+    */
+   public BufferedImage resample(final BufferedImage source,
+                                 final double sourceX,
+                                 final double sourceY,
+                                 final double sourceWidth,
+                                 final double sourceHeight,
+                                 final int width,
+                                 final int height) {
+      final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+      if ((width <= 0) || (height <= 0)) {
+         return result;
+      }
+      final int[] output = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+
+      final Weights horizontal = new Weights(_kernel, sourceX, sourceWidth, source.getWidth(), width);
+      final Weights vertical = new Weights(_kernel, sourceY, sourceHeight, source.getHeight(), height);
+      final PixelsReader reader = new PixelsReader(source);
+
+      final int bandRows = Math.max(MIN_BAND_ROWS, MIN_BAND_PIXELS / width);
+      if ((_pool == null) || (bandRows >= height)) {
+         resampleBand(reader, horizontal, vertical, 0, height, output, width);
+      }
+      else {
+         final List<RecursiveAction> bands = new ArrayList<RecursiveAction>();
+         for (int fromRow = 0; fromRow < height; fromRow += bandRows) {
+            final int bandFrom = fromRow;
+            final int bandTo = Math.min(fromRow + bandRows, height);
+            bands.add(new RecursiveAction() {
+               private static final long serialVersionUID = 1L;
+
+
+               @Override
+               protected void compute() {
+                  resampleBand(reader, horizontal, vertical, bandFrom, bandTo, output, width);
+               }
+            });
+         }
+         _pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected void compute() {
+               ForkJoinTask.invokeAll(bands);
+            }
+         });
+      }
+      return result;
+   }
+
+
+   private static void resampleBand(final PixelsReader reader,
+                                    final Weights horizontal,
+                                    final Weights vertical,
+                                    final int fromRow,
+                                    final int toRow,
+                                    final int[] output,
+                                    final int width) {
+      int fromSourceRow = Integer.MAX_VALUE;
+      int toSourceRow = Integer.MIN_VALUE;
+      for (int y = fromRow; y < toRow; y++) {
+         if (vertical._counts[y] > 0) {
+            fromSourceRow = Math.min(fromSourceRow, vertical._starts[y]);
+            toSourceRow = Math.max(toSourceRow, vertical._starts[y] + vertical._counts[y]);
+         }
+      }
+      if (fromSourceRow >= toSourceRow) {
+         return; // fully outside the source, transparent
+      }
+
+      // horizontal pass, premultiplied (a, r*a, g*a, b*a) per output column
+      final int fromSourceColumn = horizontal.getMinStart();
+      final int sourceColumns = horizontal.getMaxEnd() - fromSourceColumn;
+      final int[] sourceRow = new int[Math.max(sourceColumns, 0)];
+      final int bandSourceRows = toSourceRow - fromSourceRow;
+      final float[] rows = new float[bandSourceRows * width * 4];
+      for (int sy = fromSourceRow; sy < toSourceRow; sy++) {
+         if (sourceColumns > 0) {
+            reader.readRow(sy, fromSourceColumn, sourceColumns, sourceRow);
+         }
+         final int rowOffset = (sy - fromSourceRow) * width * 4;
+         for (int x = 0; x < width; x++) {
+            final int start = horizontal._starts[x] - fromSourceColumn;
+            final int count = horizontal._counts[x];
+            final int weightsOffset = x * horizontal._maxCount;
+            double a = 0;
+            double r = 0;
+            double g = 0;
+            double b = 0;
+            for (int i = 0; i < count; i++) {
+               final int argb = sourceRow[start + i];
+               final int alpha = argb >>> 24;
+               if (alpha != 0) {
+                  final double weight = horizontal._weights[weightsOffset + i] * alpha;
+                  a += weight;
+                  r += ((argb >> 16) & 0xff) * weight;
+                  g += ((argb >> 8) & 0xff) * weight;
+                  b += (argb & 0xff) * weight;
+               }
+            }
+            final int offset = rowOffset + (x * 4);
+            rows[offset] = (float) a;
+            rows[offset + 1] = (float) r;
+            rows[offset + 2] = (float) g;
+            rows[offset + 3] = (float) b;
+         }
+      }
+
+      // vertical pass
+      for (int y = fromRow; y < toRow; y++) {
+         final int start = vertical._starts[y] - fromSourceRow;
+         final int count = vertical._counts[y];
+         final int weightsOffset = y * vertical._maxCount;
+         final int outputOffset = y * width;
+         for (int x = 0; x < width; x++) {
+            double a = 0;
+            double r = 0;
+            double g = 0;
+            double b = 0;
+            for (int i = 0; i < count; i++) {
+               final double weight = vertical._weights[weightsOffset + i];
+               final int offset = (((start + i) * width) + x) * 4;
+               a += rows[offset] * weight;
+               r += rows[offset + 1] * weight;
+               g += rows[offset + 2] * weight;
+               b += rows[offset + 3] * weight;
+            }
+            output[outputOffset + x] = toARGB(a, r, g, b);
+         }
+      }
+   }
+
+
+   private static int toARGB(final double a,
+                             final double r,
+                             final double g,
+                             final double b) {
+      final int alpha = clamp(a);
+      if (alpha == 0) {
+         return 0;
+      }
+      // the color channels are premultiplied by the (not yet clamped) alpha
+      return (alpha << 24) | (clamp(r / a) << 16) | (clamp(g / a) << 8) | clamp(b / a);
+   }
+
+
+   private static int clamp(final double value) {
+      final long rounded = Math.round(value);
+      if (rounded < 0) {
+         return 0;
+      }
+      if (rounded > 255) {
+         return 255;
+      }
+      return (int) rounded;
+   }
+
+
+   /**
+    * The normalized weights of the source pixels contributing to every output pixel of an axis.
+    */
+   private static class Weights {
+      private final int[]    _starts;
+      private final int[]    _counts;
+      private final int      _maxCount;
+      private final double[] _weights;
+
+
+      private Weights(final ResamplingKernel kernel,
+                      final double sourceFrom,
+                      final double sourceLength,
+                      final int sourceSize,
+                      final int size) {
+         final double scale = sourceLength / size;
+         // NEAREST is point sampling, the rest are stretched when downsampling
+         final double filterScale = (kernel == ResamplingKernel.NEAREST) ? 1 : Math.max(1, scale);
+         final double support = kernel.getSupport() * filterScale;
+
+         _maxCount = (((int) Math.ceil(support)) * 2) + 1;
+         _starts = new int[size];
+         _counts = new int[size];
+         _weights = new double[size * _maxCount];
+
+         for (int i = 0; i < size; i++) {
+            final double center = sourceFrom + ((i + 0.5) * scale);
+            final int from = Math.max((int) Math.floor(center - support), 0);
+            final int to = Math.min((int) Math.ceil(center + support), sourceSize);
+
+            final int offset = i * _maxCount;
+            double total = 0;
+            int count = 0;
+            for (int j = from; (j < to) && (count < _maxCount); j++) {
+               final double weight = kernel.weight(((j + 0.5) - center) / filterScale);
+               _weights[offset + count] = weight;
+               total += weight;
+               count++;
+            }
+
+            if (total == 0) {
+               _starts[i] = 0;
+               _counts[i] = 0;
+            }
+            else {
+               for (int j = 0; j < count; j++) {
+                  _weights[offset + j] /= total;
+               }
+               _starts[i] = from;
+               _counts[i] = count;
+            }
+         }
+      }
+
+
+      private int getMinStart() {
+         int min = Integer.MAX_VALUE;
+         for (int i = 0; i < _starts.length; i++) {
+            if (_counts[i] > 0) {
+               min = Math.min(min, _starts[i]);
+            }
+         }
+         return (min == Integer.MAX_VALUE) ? 0 : min;
+      }
+
+
+      private int getMaxEnd() {
+         int max = 0;
+         for (int i = 0; i < _starts.length; i++) {
+            if (_counts[i] > 0) {
+               max = Math.max(max, _starts[i] + _counts[i]);
+            }
+         }
+         return max;
+      }
+   }
+
+
+   /**
+    * Reads rows of ARGB pixels, straight from the data array for unshared TYPE_INT_ARGB images.
+    */
+   private static class PixelsReader {
+      private final BufferedImage _image;
+      private final int[]         _data;
+      private final int           _scanlineStride;
+
+
+      private PixelsReader(final BufferedImage image) {
+         _image = image;
+         final Raster raster = image.getRaster();
+         if ((image.getType() == BufferedImage.TYPE_INT_ARGB) && (raster.getParent() == null)
+             && (raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+             && (raster.getDataBuffer().getNumBanks() == 1) && (raster.getDataBuffer().getOffset() == 0)) {
+            _data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            _scanlineStride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+         }
+         else {
+            _data = null;
+            _scanlineStride = 0;
+         }
+      }
+
+
+      private void readRow(final int y,
+                           final int fromX,
+                           final int width,
+                           final int[] result) {
+         if (_data == null) {
+            _image.getRGB(fromX, y, width, 1, result, 0, width);
+         }
+         else {
+            System.arraycopy(_data, (y * _scanlineStride) + fromX, result, 0, width);
+         }
+      }
+   }
+
+}
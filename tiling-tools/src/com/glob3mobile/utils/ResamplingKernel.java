@@ -0,0 +1,91 @@
+
+
+package com.glob3mobile.utils;
+
+
+/**
+ * Separable resampling kernels for the Resampler. When downsampling, the support of every kernel (but NEAREST) is
+ * stretched by the scale factor, so all of them average the covered source pixels instead of aliasing.
+ */
+public enum ResamplingKernel {
+
+   NEAREST(0.5) {
+      @Override
+      public double weight(final double x) {
+         return ((x >= -0.5) && (x < 0.5)) ? 1 : 0;
+      }
+   },
+
+   /**
+    * Box filter, the average of the covered source pixels when downsampling.
+    */
+   BOX(0.5) {
+      @Override
+      public double weight(final double x) {
+         return ((x >= -0.5) && (x < 0.5)) ? 1 : 0;
+      }
+   },
+
+   BILINEAR(1) {
+      @Override
+      public double weight(final double x) {
+         final double abs = Math.abs(x);
+         return (abs < 1) ? 1 - abs : 0;
+      }
+   },
+
+   /**
+    * Catmull-Rom cubic (a = -0.5).
+    */
+   BICUBIC(2) {
+      @Override
+      public double weight(final double x) {
+         final double a = -0.5;
+         final double abs = Math.abs(x);
+         if (abs < 1) {
+            return (((a + 2) * abs) - (a + 3)) * abs * abs + 1;
+         }
+         if (abs < 2) {
+            return (((((a * abs) - (5 * a)) * abs) + (8 * a)) * abs) - (4 * a);
+         }
+         return 0;
+      }
+   },
+
+   /**
+    * Lanczos windowed sinc, 3 lobes.
+    */
+   LANCZOS(3) {
+      @Override
+      public double weight(final double x) {
+         if (x == 0) {
+            return 1;
+         }
+         if ((x <= -3) || (x >= 3)) {
+            return 0;
+         }
+         final double piX = Math.PI * x;
+         return (3 * Math.sin(piX) * Math.sin(piX / 3)) / (piX * piX);
+      }
+   };
+
+
+   private final double _support;
+
+
+   private ResamplingKernel(final double support) {
+      _support = support;
+   }
+
+
+   /**
+    * Radius, in source pixels (before stretching), out of which the weight is zero.
+    */
+   public double getSupport() {
+      return _support;
+   }
+
+
+   public abstract double weight(double x);
+
+}